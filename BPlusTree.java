@@ -0,0 +1,614 @@
+/**
+ * BPlusTree
+ *
+ * An ordered map with the same operations as RedBlackTree, but stored as a
+ * B+ tree: every node holds up to 64 keys in a sorted array, values only live
+ * in the leaves, and the leaves are linked together in key order. A lookup
+ * visits about log_64(n) nodes instead of the roughly 2 log2(n) separately
+ * allocated nodes of the red black tree, and inside a node it does a binary
+ * search over one array.
+ *
+ * Internal nodes store how many keys are under each child, which is what
+ * makes findRank and select O(log n) here, the same job subtreeSize does in
+ * RedBlackTree.
+ *
+ * @author Sumneet Brar
+ */
+public class BPlusTree<K extends Comparable<K>, V> {
+
+  private static final int LEAF_CAPACITY = 64; // most keys in a leaf
+  private static final int INTERNAL_CAPACITY = 64; // most children of an internal node
+  private static final int LEAF_MIN = LEAF_CAPACITY / 2; // fewest keys in a leaf (except the root)
+  private static final int INTERNAL_MIN = INTERNAL_CAPACITY / 2; // fewest children (except the root)
+
+  private Node root = new Leaf();
+  private int height = 0; // number of internal levels above the leaves
+  private int size = 0;
+
+  // nodes are either leaves or internal nodes
+  private abstract class Node {
+    int n = 0; // keys in a leaf, children in an internal node
+  }
+
+  private class Leaf extends Node {
+    private final Object[] keys = new Object[LEAF_CAPACITY];
+    private final Object[] values = new Object[LEAF_CAPACITY];
+    private Leaf next = null;
+    private Leaf prev = null;
+  }
+
+  private class Internal extends Node {
+    // keys[i] separates children[i] (keys < keys[i]) from children[i + 1] (keys >= keys[i])
+    private final Object[] keys = new Object[INTERNAL_CAPACITY - 1];
+    private final Node[] children = newNodeArray(INTERNAL_CAPACITY);
+    private final int[] counts = new int[INTERNAL_CAPACITY]; // keys under each child
+  }
+
+  // the node classes are generic through the tree, and arrays of generic types can't be made directly
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private Node[] newNodeArray(int length) {
+    return (Node[]) new BPlusTree.Node[length];
+  }
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private Internal[] newInternalArray(int length) {
+    return (Internal[]) new BPlusTree.Internal[length];
+  }
+
+  /**
+   * This constructor creates an empty tree: just one empty leaf.
+   */
+  public BPlusTree() {
+  }
+
+  /**
+   * Returns the corresponding value to the given key or null if key
+   * is not present.
+   *
+   * @param key
+   * @return
+   */
+  @SuppressWarnings("unchecked")
+  public V get(K key) {
+    Leaf leaf = findLeaf(key);
+    int index = search(leaf.keys, leaf.n, key);
+    if (index < 0) return null;
+    return (V) leaf.values[index];
+  }
+
+  /**
+   * Returns true if the key is present.
+   *
+   * @param key
+   * @return
+   */
+  public boolean containsKey(K key) {
+    Leaf leaf = findLeaf(key);
+    return search(leaf.keys, leaf.n, key) >= 0;
+  }
+
+  /**
+   * This method inserts a new key value pair into the tree, or replaces the
+   * value if the key is already there. Full nodes split in half on the way
+   * back up.
+   *
+   * @param key given key to add
+   * @param value given value to add
+   */
+  @SuppressWarnings("unchecked")
+  public void put(K key, V value) {
+    if (key == null)
+      throw new IllegalArgumentException("Key cannot be null.");
+
+    // walk down, remembering which child we took at every level
+    Internal[] path = newInternalArray(height);
+    int[] positions = new int[height];
+    Node node = root;
+    for (int level = 0; level < height; level++) {
+      Internal internal = (Internal) node;
+      int position = childIndex(internal, key);
+      path[level] = internal;
+      positions[level] = position;
+      node = internal.children[position];
+    }
+
+    Leaf leaf = (Leaf) node;
+    int index = search(leaf.keys, leaf.n, key);
+    if (index >= 0) {
+      leaf.values[index] = value; // the key was already here
+      return;
+    }
+    index = -(index + 1);
+
+    size++;
+    for (int level = 0; level < height; level++) path[level].counts[positions[level]]++;
+
+    if (leaf.n < LEAF_CAPACITY) {
+      insertIntoLeaf(leaf, index, key, value);
+      return;
+    }
+
+    // the leaf is full: split it in half and put the key in the right half
+    Leaf right = splitLeaf(leaf);
+    if (index <= leaf.n) insertIntoLeaf(leaf, index, key, value);
+    else insertIntoLeaf(right, index - leaf.n, key, value);
+
+    // hand the new node to the parent, splitting parents as long as they're full
+    Node newNode = right;
+    Object separator = right.keys[0];
+    for (int level = height - 1; level >= 0 && newNode != null; level--) {
+      Internal parent = path[level];
+      int position = positions[level];
+
+      if (parent.n < INTERNAL_CAPACITY) {
+        insertChild(parent, position + 1, separator, newNode);
+        parent.counts[position] = count(parent.children[position]);
+        parent.counts[position + 1] = count(newNode);
+        newNode = null;
+      }
+      else {
+        Internal sibling = new Internal();
+        Object promoted = splitInternal(parent, sibling);
+        if (position < parent.n) {
+          insertChild(parent, position + 1, separator, newNode);
+          parent.counts[position] = count(parent.children[position]);
+          parent.counts[position + 1] = count(newNode);
+        }
+        else {
+          int inSibling = position - parent.n;
+          insertChild(sibling, inSibling + 1, separator, newNode);
+          sibling.counts[inSibling] = count(sibling.children[inSibling]);
+          sibling.counts[inSibling + 1] = count(newNode);
+        }
+        newNode = sibling;
+        separator = promoted;
+      }
+    }
+
+    // the root split - the tree gets one level taller
+    if (newNode != null) {
+      Internal newRoot = new Internal();
+      newRoot.children[0] = root;
+      newRoot.children[1] = newNode;
+      newRoot.keys[0] = separator;
+      newRoot.counts[0] = count(root);
+      newRoot.counts[1] = count(newNode);
+      newRoot.n = 2;
+      root = newRoot;
+      height++;
+    }
+  }
+
+  /**
+   * Removes a key-value pair, returning the deleted value.
+   * Returns null if the key wasn’t present. A node left less than half full
+   * borrows a key from a sibling, or merges with it if the sibling can't
+   * spare one.
+   *
+   * @param key
+   * @return
+   */
+  @SuppressWarnings("unchecked")
+  public V delete(K key) {
+    Internal[] path = newInternalArray(height);
+    int[] positions = new int[height];
+    Node node = root;
+    for (int level = 0; level < height; level++) {
+      Internal internal = (Internal) node;
+      int position = childIndex(internal, key);
+      path[level] = internal;
+      positions[level] = position;
+      node = internal.children[position];
+    }
+
+    Leaf leaf = (Leaf) node;
+    int index = search(leaf.keys, leaf.n, key);
+    if (index < 0) return null; // key wasn't present
+
+    V value = (V) leaf.values[index];
+    removeFromLeaf(leaf, index);
+    size--;
+    for (int level = 0; level < height; level++) path[level].counts[positions[level]]--;
+
+    // fix underfull nodes from the bottom up
+    for (int level = height - 1; level >= 0; level--) {
+      Internal parent = path[level];
+      int position = positions[level];
+      Node child = parent.children[position];
+      boolean underfull = child instanceof Leaf ? child.n < LEAF_MIN : child.n < INTERNAL_MIN;
+      if (!underfull) break;
+      rebalance(parent, position);
+    }
+
+    // an internal root with one child isn't needed any more
+    if (height > 0 && root.n == 1) {
+      root = ((Internal) root).children[0];
+      height--;
+    }
+    return value;
+  }
+
+  /**
+   * Returns true if the tree is empty.
+   *
+   * @return
+   */
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Returns n, the number of key-value pairs in the tree.
+   *
+   * @return
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Returns the key that is less than all the others.
+   * Or null if none.
+   *
+   * @return
+   */
+  @SuppressWarnings("unchecked")
+  public K findFirstKey() {
+    if (size == 0) return null;
+    Node node = root;
+    for (int level = 0; level < height; level++) node = ((Internal) node).children[0];
+    return (K) ((Leaf) node).keys[0];
+  }
+
+  /**
+   * Returns the key that is greater than all the others.
+   * Or null if none.
+   *
+   * @return
+   */
+  @SuppressWarnings("unchecked")
+  public K findLastKey() {
+    if (size == 0) return null;
+    Node node = root;
+    for (int level = 0; level < height; level++) node = ((Internal) node).children[node.n - 1];
+    return (K) ((Leaf) node).keys[node.n - 1];
+  }
+
+  /**
+   * Returns the predecessor of the given key, or null
+   * if the key is not present or has no predecessor.
+   *
+   * @param key
+   * @return
+   */
+  @SuppressWarnings("unchecked")
+  public K findPredecessor(K key) {
+    Leaf leaf = findLeaf(key);
+    int index = search(leaf.keys, leaf.n, key);
+    if (index < 0) return null; // the key doesn't exist
+    if (index > 0) return (K) leaf.keys[index - 1];
+    if (leaf.prev == null) return null;
+    return (K) leaf.prev.keys[leaf.prev.n - 1];
+  }
+
+  /**
+   * Returns the successor of the given key, or null
+   * if the key is not present or has no successor.
+   *
+   * @param key
+   * @return
+   */
+  @SuppressWarnings("unchecked")
+  public K findSuccessor(K key) {
+    Leaf leaf = findLeaf(key);
+    int index = search(leaf.keys, leaf.n, key);
+    if (index < 0) return null; // the key doesn't exist
+    if (index + 1 < leaf.n) return (K) leaf.keys[index + 1];
+    if (leaf.next == null) return null;
+    return (K) leaf.next.keys[0];
+  }
+
+  /**
+   * Returns the rank of the given key, or -1 if the key is
+   * not present.
+   *
+   * @param key
+   * @return
+   */
+  public int findRank(K key) {
+    Node node = root;
+    int rank = 0;
+    for (int level = 0; level < height; level++) {
+      Internal internal = (Internal) node;
+      int position = childIndex(internal, key);
+      for (int i = 0; i < position; i++) rank += internal.counts[i]; // everything in the children to our left
+      node = internal.children[position];
+    }
+
+    Leaf leaf = (Leaf) node;
+    int index = search(leaf.keys, leaf.n, key);
+    if (index < 0) return -1;
+    return rank + index;
+  }
+
+  /**
+   * Returns the key with the given rank. Throws an IllegalArgumentException
+   * when the rank is invalid.
+   *
+   * @param rank
+   * @return
+   */
+  @SuppressWarnings("unchecked")
+  public K select(int rank) {
+    if (rank < 0 || rank >= size()) {
+      throw new IllegalArgumentException("Rank is out of bounds!");
+    }
+
+    Node node = root;
+    for (int level = 0; level < height; level++) {
+      Internal internal = (Internal) node;
+      int position = 0;
+      while (rank >= internal.counts[position]) {
+        rank -= internal.counts[position];
+        position++;
+      }
+      node = internal.children[position];
+    }
+    return (K) ((Leaf) node).keys[rank];
+  }
+
+  /**
+   * Returns the number of levels in the tree, counting the leaves. An empty
+   * tree has height 1.
+   *
+   * @return
+   */
+  public int calcHeight() {
+    return height + 1;
+  }
+
+  private Leaf findLeaf(K key) {
+    Node node = root;
+    for (int level = 0; level < height; level++) {
+      Internal internal = (Internal) node;
+      node = internal.children[childIndex(internal, key)];
+    }
+    return (Leaf) node;
+  }
+
+  // the child to go down for the key: the number of separators <= key
+  @SuppressWarnings("unchecked")
+  private int childIndex(Internal node, K key) {
+    int low = 0;
+    int high = node.n - 1; // number of separators
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (key.compareTo((K) node.keys[middle]) >= 0) low = middle + 1;
+      else high = middle;
+    }
+    return low;
+  }
+
+  // binary search like Arrays.binarySearch: the index, or -(insertion point) - 1
+  @SuppressWarnings("unchecked")
+  private int search(Object[] keys, int n, K key) {
+    int low = 0;
+    int high = n - 1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      int compare = key.compareTo((K) keys[middle]);
+      if (compare > 0) low = middle + 1;
+      else if (compare < 0) high = middle - 1;
+      else return middle;
+    }
+    return -(low + 1);
+  }
+
+  // number of keys under a node
+  private int count(Node node) {
+    if (node instanceof Leaf) return node.n;
+    Internal internal = (Internal) node;
+    int total = 0;
+    for (int i = 0; i < internal.n; i++) total += internal.counts[i];
+    return total;
+  }
+
+  private void insertIntoLeaf(Leaf leaf, int index, Object key, Object value) {
+    System.arraycopy(leaf.keys, index, leaf.keys, index + 1, leaf.n - index);
+    System.arraycopy(leaf.values, index, leaf.values, index + 1, leaf.n - index);
+    leaf.keys[index] = key;
+    leaf.values[index] = value;
+    leaf.n++;
+  }
+
+  private void removeFromLeaf(Leaf leaf, int index) {
+    System.arraycopy(leaf.keys, index + 1, leaf.keys, index, leaf.n - index - 1);
+    System.arraycopy(leaf.values, index + 1, leaf.values, index, leaf.n - index - 1);
+    leaf.n--;
+    leaf.keys[leaf.n] = null;
+    leaf.values[leaf.n] = null;
+  }
+
+  // moves the upper half of a full leaf into a new leaf, which is returned
+  private Leaf splitLeaf(Leaf leaf) {
+    Leaf right = new Leaf();
+    int half = leaf.n / 2;
+    right.n = leaf.n - half;
+    System.arraycopy(leaf.keys, half, right.keys, 0, right.n);
+    System.arraycopy(leaf.values, half, right.values, 0, right.n);
+    for (int i = half; i < leaf.n; i++) {
+      leaf.keys[i] = null;
+      leaf.values[i] = null;
+    }
+    leaf.n = half;
+
+    // link the new leaf in after the old one
+    right.next = leaf.next;
+    right.prev = leaf;
+    if (leaf.next != null) leaf.next.prev = right;
+    leaf.next = right;
+    return right;
+  }
+
+  // puts child at the given position, with separator just to its left
+  private void insertChild(Internal node, int position, Object separator, Node child) {
+    System.arraycopy(node.children, position, node.children, position + 1, node.n - position);
+    System.arraycopy(node.counts, position, node.counts, position + 1, node.n - position);
+    System.arraycopy(node.keys, position - 1, node.keys, position, node.n - position);
+    node.children[position] = child;
+    node.keys[position - 1] = separator;
+    node.n++;
+  }
+
+  // removes the child at the given position along with the separator to its left
+  private void removeChild(Internal node, int position) {
+    System.arraycopy(node.children, position + 1, node.children, position, node.n - position - 1);
+    System.arraycopy(node.counts, position + 1, node.counts, position, node.n - position - 1);
+    System.arraycopy(node.keys, position, node.keys, position - 1, node.n - position - 1);
+    node.n--;
+    node.children[node.n] = null;
+    node.counts[node.n] = 0;
+    node.keys[node.n - 1] = null;
+  }
+
+  /**
+   * Moves the upper half of a full internal node into the (empty) sibling.
+   * Returns the separator between the two halves, which moves up to the
+   * parent.
+   */
+  private Object splitInternal(Internal node, Internal sibling) {
+    int half = node.n / 2;
+    sibling.n = node.n - half;
+    System.arraycopy(node.children, half, sibling.children, 0, sibling.n);
+    System.arraycopy(node.counts, half, sibling.counts, 0, sibling.n);
+    System.arraycopy(node.keys, half, sibling.keys, 0, sibling.n - 1);
+    Object promoted = node.keys[half - 1];
+
+    for (int i = half; i < node.n; i++) {
+      node.children[i] = null;
+      node.counts[i] = 0;
+    }
+    for (int i = half - 1; i < node.n - 1; i++) node.keys[i] = null;
+    node.n = half;
+    return promoted;
+  }
+
+  /**
+   * The child at the given position is less than half full. Borrow from a
+   * sibling that has keys to spare, otherwise merge with a sibling.
+   */
+  private void rebalance(Internal parent, int position) {
+    Node child = parent.children[position];
+    Node left = position > 0 ? parent.children[position - 1] : null;
+    Node right = position + 1 < parent.n ? parent.children[position + 1] : null;
+    int min = child instanceof Leaf ? LEAF_MIN : INTERNAL_MIN;
+
+    if (left != null && left.n > min) borrowFromLeft(parent, position);
+    else if (right != null && right.n > min) borrowFromRight(parent, position);
+    else if (left != null) merge(parent, position - 1);
+    else merge(parent, position);
+  }
+
+  private void borrowFromLeft(Internal parent, int position) {
+    Node child = parent.children[position];
+    Node left = parent.children[position - 1];
+
+    if (child instanceof Leaf) {
+      Leaf leaf = (Leaf) child;
+      Leaf from = (Leaf) left;
+      insertIntoLeaf(leaf, 0, from.keys[from.n - 1], from.values[from.n - 1]);
+      removeFromLeaf(from, from.n - 1);
+      parent.keys[position - 1] = leaf.keys[0];
+      parent.counts[position - 1]--;
+      parent.counts[position]++;
+      return;
+    }
+
+    // internal: the parent's separator comes down, the sibling's last key goes up
+    Internal node = (Internal) child;
+    Internal from = (Internal) left;
+    int moved = from.counts[from.n - 1];
+    System.arraycopy(node.children, 0, node.children, 1, node.n);
+    System.arraycopy(node.counts, 0, node.counts, 1, node.n);
+    System.arraycopy(node.keys, 0, node.keys, 1, node.n - 1);
+    node.children[0] = from.children[from.n - 1];
+    node.counts[0] = moved;
+    node.keys[0] = parent.keys[position - 1];
+    node.n++;
+
+    parent.keys[position - 1] = from.keys[from.n - 2];
+    from.keys[from.n - 2] = null;
+    from.children[from.n - 1] = null;
+    from.counts[from.n - 1] = 0;
+    from.n--;
+
+    parent.counts[position - 1] -= moved;
+    parent.counts[position] += moved;
+  }
+
+  private void borrowFromRight(Internal parent, int position) {
+    Node child = parent.children[position];
+    Node right = parent.children[position + 1];
+
+    if (child instanceof Leaf) {
+      Leaf leaf = (Leaf) child;
+      Leaf from = (Leaf) right;
+      insertIntoLeaf(leaf, leaf.n, from.keys[0], from.values[0]);
+      removeFromLeaf(from, 0);
+      parent.keys[position] = from.keys[0];
+      parent.counts[position]++;
+      parent.counts[position + 1]--;
+      return;
+    }
+
+    // internal: the parent's separator comes down, the sibling's first key goes up
+    Internal node = (Internal) child;
+    Internal from = (Internal) right;
+    int moved = from.counts[0];
+    node.children[node.n] = from.children[0];
+    node.counts[node.n] = moved;
+    node.keys[node.n - 1] = parent.keys[position];
+    node.n++;
+
+    parent.keys[position] = from.keys[0];
+    System.arraycopy(from.children, 1, from.children, 0, from.n - 1);
+    System.arraycopy(from.counts, 1, from.counts, 0, from.n - 1);
+    System.arraycopy(from.keys, 1, from.keys, 0, from.n - 2);
+    from.n--;
+    from.children[from.n] = null;
+    from.counts[from.n] = 0;
+    from.keys[from.n - 1] = null;
+
+    parent.counts[position] += moved;
+    parent.counts[position + 1] -= moved;
+  }
+
+  // merges the child at position + 1 into the child at position
+  private void merge(Internal parent, int position) {
+    Node left = parent.children[position];
+    Node right = parent.children[position + 1];
+
+    if (left instanceof Leaf) {
+      Leaf into = (Leaf) left;
+      Leaf from = (Leaf) right;
+      System.arraycopy(from.keys, 0, into.keys, into.n, from.n);
+      System.arraycopy(from.values, 0, into.values, into.n, from.n);
+      into.n += from.n;
+      into.next = from.next;
+      if (from.next != null) from.next.prev = into;
+    }
+    else {
+      // the separator between them comes down between the two sets of keys
+      Internal into = (Internal) left;
+      Internal from = (Internal) right;
+      into.keys[into.n - 1] = parent.keys[position];
+      System.arraycopy(from.keys, 0, into.keys, into.n, from.n - 1);
+      System.arraycopy(from.children, 0, into.children, into.n, from.n);
+      System.arraycopy(from.counts, 0, into.counts, into.n, from.n);
+      into.n += from.n;
+    }
+
+    parent.counts[position] += parent.counts[position + 1];
+    removeChild(parent, position + 1);
+  }
+}
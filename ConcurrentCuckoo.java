@@ -0,0 +1,507 @@
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Concurrent Cuckoo Hashing
+ *
+ * A thread-safe version of Cuckoo. Each table is split into buckets of a few
+ * slots, and every bucket is guarded by one of a fixed number of striped
+ * version counters. Writers lock a stripe by making its version odd and unlock
+ * it by making it even again. Readers never lock: they remember the versions
+ * of the two stripes they need, look at the buckets, and retry if either
+ * version moved while they were looking. A resize holds every stripe while
+ * it copies, but it never changes the tables it copies from, so readers keep
+ * reading those in the meantime instead of waiting for it. The only waits a
+ * reader sees are the short ones for a writer in its buckets, or for a
+ * resize that is still taking the stripes.
+ *
+ * When both buckets of a key are full, the writer does a breadth first search
+ * (like libcuckoo) for the shortest chain of displacements that ends in a free
+ * slot, and then moves the entries along that chain back to front, so a key is
+ * always in at least one of its buckets while it is being moved.
+ *
+ * Keys and values cannot be null.
+ *
+ * @author Sumneet Brar
+ */
+public class ConcurrentCuckoo<K, V> {
+
+  private static final int SLOTS_PER_BUCKET = 4; // entries per bucket
+  private static final int STRIPES = 1 << 12; // number of lock stripes (power of two)
+  private static final int MAX_SEARCH = 512; // most slots the path search will look at
+  private static final int MAX_PATH = 8; // longest displacement chain we will follow
+
+  // one version counter per stripe - odd means a writer holds the stripe
+  private final AtomicLongArray versions = new AtomicLongArray(STRIPES);
+  private final AtomicInteger tableSize = new AtomicInteger();
+
+  // the current tables, replaced as a whole when we resize
+  private volatile Tables<K, V> tables;
+  // the tables a running resize is copying from, or null. Nothing writes to them
+  // any more, so readers can read them without checking versions.
+  private volatile Tables<K, V> resizing = null;
+
+  /**
+   * Creates the hash table, using the default initial size of 16 buckets per table.
+   */
+  public ConcurrentCuckoo() {
+    this(16);
+  }
+
+  /**
+   * Creates the hash table, with at least the given number of buckets per
+   * table (rounded up to a power of two).
+   *
+   * @param initialSize
+   */
+  public ConcurrentCuckoo(int initialSize) {
+    if (initialSize < 1)
+      throw new IllegalArgumentException("Initial size must be positive.");
+    int buckets = Integer.highestOneBit(initialSize);
+    if (buckets < initialSize) buckets <<= 1;
+    tables = new Tables<>(buckets);
+  }
+
+  /**
+   * Inserts a new key-value pair, replacing the value if the key is already
+   * present.
+   *
+   * @param key
+   * @param value
+   */
+  public void put(K key, V value) {
+    putInternal(key, value, false);
+  }
+
+  /**
+   * Inserts the key-value pair only if the key is not already present.
+   * Returns the existing value, or null if the pair was inserted.
+   *
+   * @param key
+   * @param value
+   * @return
+   */
+  public V putIfAbsent(K key, V value) {
+    return putInternal(key, value, true);
+  }
+
+  private V putInternal(K key, V value, boolean onlyIfAbsent) {
+    if (key == null || value == null)
+      throw new IllegalArgumentException("Key and value cannot be null.");
+
+    int hash = spread(key.hashCode());
+    Entry<K, V> newEntry = new Entry<>(key, value, hash);
+
+    while (true) {
+      Tables<K, V> t = tables;
+      int bucket1 = t.bucket1(hash);
+      int bucket2 = t.bucket2(hash);
+
+      lockPair(bucket1, bucket2);
+      try {
+        if (t != tables) continue; // a resize got in first - start over
+
+        // replace the value if the key is already in one of its buckets
+        int slot = t.find(0, bucket1, key, hash);
+        if (slot < 0) slot = t.find(1, bucket2, key, hash);
+        if (slot >= 0) {
+          Entry<K, V> old = t.slots.get(slot);
+          if (!onlyIfAbsent) t.slots.set(slot, newEntry);
+          return old.value;
+        }
+
+        // otherwise take any free slot in either bucket
+        int free = t.freeSlot(0, bucket1);
+        if (free < 0) free = t.freeSlot(1, bucket2);
+        if (free >= 0) {
+          t.slots.set(free, newEntry);
+          tableSize.incrementAndGet();
+          return null;
+        }
+      } finally {
+        unlockPair(bucket1, bucket2);
+      }
+
+      // both buckets are full - make room by moving other entries along a path
+      if (!makeRoom(t, bucket1, bucket2)) resize(t);
+    }
+  }
+
+  /**
+   * Breadth first search for a chain of displacements that frees a slot in one
+   * of the two given buckets, then performs the moves. Returns false if no
+   * usable path was found and the table should grow.
+   */
+  private boolean makeRoom(Tables<K, V> t, int bucket1, int bucket2) {
+    // each search node is a slot; parent[] lets us walk back to the start
+    int[] slot = new int[MAX_SEARCH];
+    int[] parent = new int[MAX_SEARCH];
+    int[] depth = new int[MAX_SEARCH];
+    int head = 0;
+    int tail = 0;
+
+    // the first level is every slot in the two starting buckets
+    for (int table = 0; table < 2; table++) {
+      int bucket = table == 0 ? bucket1 : bucket2;
+      for (int i = 0; i < SLOTS_PER_BUCKET; i++) {
+        slot[tail] = t.index(table, bucket, i);
+        parent[tail] = -1;
+        depth[tail] = 0;
+        tail++;
+      }
+    }
+
+    while (head < tail) {
+      int node = head++;
+      Entry<K, V> entry = t.slots.get(slot[node]);
+      if (entry == null) return true; // someone freed the slot while we searched
+
+      // the entry in this slot could move to its bucket in the other table
+      int table = t.tableOf(slot[node]);
+      int otherTable = 1 - table;
+      int otherBucket = otherTable == 0 ? t.bucket1(entry.hash) : t.bucket2(entry.hash);
+
+      int free = t.freeSlot(otherTable, otherBucket);
+      if (free >= 0) return movePath(t, slot, parent, node, free);
+
+      if (depth[node] + 1 >= MAX_PATH) continue;
+      for (int i = 0; i < SLOTS_PER_BUCKET && tail < MAX_SEARCH; i++) {
+        slot[tail] = t.index(otherTable, otherBucket, i);
+        parent[tail] = node;
+        depth[tail] = depth[node] + 1;
+        tail++;
+      }
+    }
+    return false; // we ran out of search space
+  }
+
+  /**
+   * Moves entries along the path found by the search, starting with the one
+   * next to the free slot. Each move locks just the two buckets involved and
+   * checks that nothing changed since the search. Returns true if a slot was
+   * freed, or if the caller should simply retry because the table changed.
+   */
+  private boolean movePath(Tables<K, V> t, int[] slot, int[] parent, int node, int freeSlot) {
+    int destination = freeSlot;
+    while (node >= 0) {
+      int source = slot[node];
+      int sourceBucket = t.bucketOf(source);
+      int destinationBucket = t.bucketOf(destination);
+
+      lockPair(sourceBucket, destinationBucket);
+      try {
+        if (t != tables) return true; // the table was resized - retry the put
+        Entry<K, V> entry = t.slots.get(source);
+        if (entry == null) return true; // the slot is already free
+        if (t.slots.get(destination) != null) return true; // someone took our free slot - search again
+
+        // make sure the entry still belongs in the destination bucket
+        int table = t.tableOf(destination);
+        int expected = table == 0 ? t.bucket1(entry.hash) : t.bucket2(entry.hash);
+        if (expected != destinationBucket || t.tableOf(source) == table) return true;
+
+        // copy first and clear second, so the key is never missing from both
+        t.slots.set(destination, entry);
+        t.slots.set(source, null);
+      } finally {
+        unlockPair(sourceBucket, destinationBucket);
+      }
+
+      destination = source;
+      node = parent[node];
+    }
+    return true;
+  }
+
+  /**
+   * Doubles both tables. Takes every stripe, so no other writer can run, and
+   * publishes the new tables before letting go.
+   */
+  private void resize(Tables<K, V> old) {
+    for (int i = 0; i < STRIPES; i++) lockStripe(i);
+    try {
+      if (old != tables) return; // someone else already resized
+      resizing = old;
+
+      int buckets = old.buckets;
+      Tables<K, V> bigger;
+      do {
+        buckets *= 2;
+        bigger = old.copyInto(buckets);
+      } while (bigger == null);
+      tables = bigger;
+    } finally {
+      resizing = null;
+      for (int i = 0; i < STRIPES; i++) unlockStripe(i);
+    }
+  }
+
+  /**
+   * Returns the value corresponding to the given key, or null if the key is not
+   * present. Never blocks.
+   *
+   * @param key
+   * @return
+   */
+  public V get(K key) {
+    if (key == null)
+      throw new IllegalArgumentException("Key cannot be null.");
+
+    int hash = spread(key.hashCode());
+    while (true) {
+      Tables<K, V> t = tables;
+      int bucket1 = t.bucket1(hash);
+      int bucket2 = t.bucket2(hash);
+      int stripe1 = stripe(bucket1);
+      int stripe2 = stripe(bucket2);
+
+      long version1 = versions.get(stripe1);
+      long version2 = versions.get(stripe2);
+      if ((version1 & 1) != 0 || (version2 & 1) != 0) {
+        if (resizing == t) return lookup(t, key, hash, bucket1, bucket2); // t won't change again
+        Thread.onSpinWait(); // a writer is in the middle of these buckets
+        continue;
+      }
+
+      V value = lookup(t, key, hash, bucket1, bucket2);
+
+      // only trust what we read if no writer touched the buckets meanwhile
+      if (versions.get(stripe1) == version1 && versions.get(stripe2) == version2 && t == tables) {
+        return value;
+      }
+    }
+  }
+
+  // the key's value in the tables, or null - the caller makes sure no writer was in the way
+  private V lookup(Tables<K, V> t, K key, int hash, int bucket1, int bucket2) {
+    int slot = t.find(0, bucket1, key, hash);
+    if (slot < 0) slot = t.find(1, bucket2, key, hash);
+    if (slot < 0) return null;
+    Entry<K, V> entry = t.slots.get(slot);
+    return entry == null ? null : entry.value;
+  }
+
+  /**
+   * Searches for the key, and returns true if it is present. Never blocks.
+   *
+   * @param key
+   * @return
+   */
+  public boolean containsKey(K key) {
+    return get(key) != null;
+  }
+
+  /**
+   * Removes a key-value pair, returning the deleted value.
+   * Returns null if the key wasn’t present.
+   *
+   * @param key
+   * @return
+   */
+  public V delete(K key) {
+    if (key == null)
+      throw new IllegalArgumentException("Key cannot be null.");
+
+    int hash = spread(key.hashCode());
+    while (true) {
+      Tables<K, V> t = tables;
+      int bucket1 = t.bucket1(hash);
+      int bucket2 = t.bucket2(hash);
+
+      lockPair(bucket1, bucket2);
+      try {
+        if (t != tables) continue;
+
+        int slot = t.find(0, bucket1, key, hash);
+        if (slot < 0) slot = t.find(1, bucket2, key, hash);
+        if (slot < 0) return null; // key wasn't present
+
+        V value = t.slots.get(slot).value;
+        t.slots.set(slot, null);
+        tableSize.decrementAndGet();
+        return value;
+      } finally {
+        unlockPair(bucket1, bucket2);
+      }
+    }
+  }
+
+  /**
+   * Returns true if the table is empty.
+   *
+   * @return true or false
+   */
+  public boolean isEmpty() {
+    return tableSize.get() == 0;
+  }
+
+  /**
+   * Returns n, the number of key-value pairs in the table.
+   *
+   * @return
+   */
+  public int size() {
+    return tableSize.get();
+  }
+
+  /**
+   * Returns m, the number of slots in one of the two tables.
+   *
+   * @return
+   */
+  public int getTableSize() {
+    return tables.buckets * SLOTS_PER_BUCKET;
+  }
+
+  /**
+   * Returns α, which is n/m.
+   *
+   * @return
+   */
+  public double getLoadFactor() {
+    return (double) tableSize.get() / getTableSize();
+  }
+
+  private int stripe(int bucket) {
+    return bucket & (STRIPES - 1);
+  }
+
+  // take both stripes in index order so two writers can never deadlock
+  private void lockPair(int bucket1, int bucket2) {
+    int stripe1 = stripe(bucket1);
+    int stripe2 = stripe(bucket2);
+    if (stripe1 == stripe2) {
+      lockStripe(stripe1);
+    } else {
+      lockStripe(Math.min(stripe1, stripe2));
+      lockStripe(Math.max(stripe1, stripe2));
+    }
+  }
+
+  private void unlockPair(int bucket1, int bucket2) {
+    int stripe1 = stripe(bucket1);
+    int stripe2 = stripe(bucket2);
+    unlockStripe(stripe1);
+    if (stripe1 != stripe2) unlockStripe(stripe2);
+  }
+
+  private void lockStripe(int stripe) {
+    while (true) {
+      long version = versions.get(stripe);
+      if ((version & 1) == 0 && versions.compareAndSet(stripe, version, version + 1)) return;
+      Thread.onSpinWait();
+    }
+  }
+
+  private void unlockStripe(int stripe) {
+    versions.incrementAndGet(stripe); // back to even, and different from before
+  }
+
+  // mix the hash code so that both bucket functions use all of its bits
+  private static int spread(int h) {
+    h ^= (h >>> 16);
+    h *= 0x85ebca6b;
+    h ^= (h >>> 13);
+    return h;
+  }
+
+  /**
+   * One generation of the two tables. All slots live in one array: table 0
+   * first, then table 1, each made of buckets of SLOTS_PER_BUCKET slots.
+   */
+  private static class Tables<K, V> {
+    private final int buckets;
+    private final AtomicReferenceArray<Entry<K, V>> slots;
+
+    private Tables(int buckets) {
+      this.buckets = buckets;
+      this.slots = new AtomicReferenceArray<>(2 * buckets * SLOTS_PER_BUCKET);
+    }
+
+    private int bucket1(int hash) {
+      return hash & (buckets - 1);
+    }
+
+    private int bucket2(int hash) {
+      int prime = 0x9E3779B1;
+      return ((hash * prime) >>> 16 ^ (hash * prime)) & (buckets - 1);
+    }
+
+    private int index(int table, int bucket, int slot) {
+      return (table * buckets + bucket) * SLOTS_PER_BUCKET + slot;
+    }
+
+    private int tableOf(int index) {
+      return index / (buckets * SLOTS_PER_BUCKET);
+    }
+
+    private int bucketOf(int index) {
+      return (index / SLOTS_PER_BUCKET) % buckets;
+    }
+
+    private int find(int table, int bucket, Object key, int hash) {
+      int start = index(table, bucket, 0);
+      for (int i = start; i < start + SLOTS_PER_BUCKET; i++) {
+        Entry<K, V> entry = slots.get(i);
+        if (entry != null && entry.hash == hash && entry.key.equals(key)) return i;
+      }
+      return -1;
+    }
+
+    private int freeSlot(int table, int bucket) {
+      int start = index(table, bucket, 0);
+      for (int i = start; i < start + SLOTS_PER_BUCKET; i++) {
+        if (slots.get(i) == null) return i;
+      }
+      return -1;
+    }
+
+    /**
+     * Builds a new generation with the given number of buckets holding every
+     * entry of this one, or returns null if they didn't all fit. Only called
+     * while every stripe is held.
+     */
+    private Tables<K, V> copyInto(int newBuckets) {
+      Tables<K, V> bigger = new Tables<>(newBuckets);
+      for (int i = 0; i < slots.length(); i++) {
+        Entry<K, V> entry = slots.get(i);
+        if (entry != null && !bigger.insertQuietly(entry)) return null;
+      }
+      return bigger;
+    }
+
+    // single threaded insert used while resizing - a short random walk is plenty here
+    private boolean insertQuietly(Entry<K, V> entry) {
+      for (int kicks = 0; kicks < MAX_SEARCH; kicks++) {
+        int free = freeSlot(0, bucket1(entry.hash));
+        if (free < 0) free = freeSlot(1, bucket2(entry.hash));
+        if (free >= 0) {
+          slots.set(free, entry);
+          return true;
+        }
+
+        // evict a slot from alternating tables and carry its entry onwards
+        int table = kicks & 1;
+        int bucket = table == 0 ? bucket1(entry.hash) : bucket2(entry.hash);
+        int victim = index(table, bucket, kicks % SLOTS_PER_BUCKET);
+        Entry<K, V> kicked = slots.get(victim);
+        slots.set(victim, entry);
+        entry = kicked;
+      }
+      return false;
+    }
+  }
+
+  private static class Entry<K, V> {
+    private final K key;
+    private final V value;
+    private final int hash;
+
+    private Entry(K key, V value, int hash) {
+      this.key = key;
+      this.value = value;
+      this.hash = hash;
+    }
+  }
+}
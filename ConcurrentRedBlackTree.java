@@ -0,0 +1,180 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * ConcurrentRedBlackTree
+ *
+ * An ordered map that many threads can read while some threads write. The
+ * tree is a PersistentRedBlackTree: a write never changes nodes other threads
+ * can see, it builds a new version that shares everything off the changed
+ * path and publishes it through a volatile field. Readers just read the
+ * current version and walk down, so they never block and always see one
+ * consistent version of the tree.
+ *
+ * Writers queue their change and whoever holds the write lock applies every
+ * queued change in one batch (one PersistentRedBlackTree.Editor) and
+ * publishes one new version for all of them. Inside a batch, nodes that were
+ * already copied are changed in place, so a burst of writes doesn't copy the
+ * top of the tree once per write.
+ *
+ * Keys and values cannot be null.
+ *
+ * @author Sumneet Brar
+ */
+public class ConcurrentRedBlackTree<K extends Comparable<K>, V> {
+
+  private static final int MAX_BATCH = 1024; // most queued writes one thread applies at a time
+
+  private volatile PersistentRedBlackTree<K, V> current = new PersistentRedBlackTree<>();
+  private final ReentrantLock writeLock = new ReentrantLock();
+  private final ConcurrentLinkedQueue<Write<K, V>> pending = new ConcurrentLinkedQueue<>();
+
+  /**
+   * Inserts a new key value pair, or replaces the value of an existing key.
+   * Returns the old value, or null if the key is new.
+   *
+   * @param key
+   * @param value
+   * @return
+   */
+  public V put(K key, V value) {
+    if (key == null || value == null)
+      throw new IllegalArgumentException("Key and value cannot be null.");
+    return submit(new Write<>(key, value, false));
+  }
+
+  /**
+   * Removes a key-value pair, returning the deleted value.
+   * Returns null if the key wasn’t present.
+   *
+   * @param key
+   * @return
+   */
+  public V delete(K key) {
+    if (key == null)
+      throw new IllegalArgumentException("Key cannot be null.");
+    return submit(new Write<>(key, null, true));
+  }
+
+  /**
+   * Queues the write and waits for the write lock. Whoever gets the lock
+   * applies everything that's queued, so by the time we get it our write may
+   * already have been done by somebody else. If our write threw (say the key's
+   * compareTo did), we rethrow it here, not in whoever applied it.
+   */
+  private V submit(Write<K, V> write) {
+    pending.add(write);
+    writeLock.lock();
+    try {
+      while (!write.done) applyBatch();
+    } finally {
+      writeLock.unlock();
+    }
+    if (write.failure instanceof RuntimeException) throw (RuntimeException) write.failure;
+    if (write.failure instanceof Error) throw (Error) write.failure;
+    return write.result;
+  }
+
+  // only called while holding the write lock
+  private void applyBatch() {
+    List<Write<K, V>> batch = new ArrayList<>();
+    Write<K, V> write;
+    while (batch.size() < MAX_BATCH && (write = pending.poll()) != null) batch.add(write);
+
+    try {
+      current = apply(batch); // one publish for the whole batch
+    } finally {
+      // the waiting writers read these after they get the lock, so the lock makes them visible
+      for (Write<K, V> done : batch) done.done = true;
+    }
+  }
+
+  // Applies the batch in one editor. A write that throws keeps its exception
+  // instead of a result, and since it may have left the editor's nodes half
+  // changed, the batch starts over from the current version without it.
+  private PersistentRedBlackTree<K, V> apply(List<Write<K, V>> batch) {
+    while (true) {
+      PersistentRedBlackTree.Editor<K, V> editor = current.edit();
+      boolean clean = true;
+      for (Write<K, V> write : batch) {
+        if (write.failure != null) continue;
+        try {
+          if (write.isDelete) write.result = editor.delete(write.key);
+          else write.result = editor.put(write.key, write.value);
+        } catch (RuntimeException | Error e) {
+          write.failure = e;
+          clean = false;
+          break;
+        }
+      }
+      if (clean) return editor.commit();
+    }
+  }
+
+  /**
+   * Returns the corresponding value to the given key or null if key
+   * is not present. Never blocks.
+   *
+   * @param key
+   * @return
+   */
+  public V get(K key) {
+    return current.get(key);
+  }
+
+  /**
+   * Returns true if the key is present. Never blocks.
+   *
+   * @param key
+   * @return
+   */
+  public boolean containsKey(K key) {
+    return current.containsKey(key);
+  }
+
+  /**
+   * Returns n, the number of key-value pairs in the tree.
+   *
+   * @return
+   */
+  public int size() {
+    return current.size();
+  }
+
+  /**
+   * Returns true if the tree is empty.
+   *
+   * @return
+   */
+  public boolean isEmpty() {
+    return current.isEmpty();
+  }
+
+  /**
+   * Returns the tree as it is right now. It doesn't change when this tree
+   * does, costs O(1) to take, and findRank and select on it stay O(log n).
+   *
+   * @return
+   */
+  public PersistentRedBlackTree<K, V> snapshot() {
+    return current;
+  }
+
+  // a queued put or delete, and where its result goes
+  private static class Write<K, V> {
+    private final K key;
+    private final V value;
+    private final boolean isDelete;
+    private V result;
+    private Throwable failure; // what the write threw, if it did
+    private boolean done = false;
+
+    private Write(K key, V value, boolean isDelete) {
+      this.key = key;
+      this.value = value;
+      this.isDelete = isDelete;
+    }
+  }
+}
@@ -0,0 +1,199 @@
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps idle HTTP/1.1 connections open per host so later requests to the
+ * same host can skip the TCP handshake. Connections are handed out most
+ * recently used first, and ones that sat idle too long are closed instead of
+ * reused, since the server has probably dropped them by then.
+ *
+ * Safe to use from many threads at once.
+ *
+ * @author Sumneet
+ */
+public class ConnectionPool {
+
+    public static final int DEFAULT_MAX_IDLE_PER_HOST = 8;
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 30_000;
+
+    private final int maxIdlePerHost;
+    private final long idleTimeoutNanos;
+    private final Connector connector;
+    // host:port -> idle connections, most recently used at the front
+    private final Map<String, ArrayDeque<HttpConnection>> idle = new HashMap<>();
+
+    private final AtomicLong opened = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+
+    /**
+     * Creates a pool with the default limits.
+     */
+    public ConnectionPool() {
+        this(DEFAULT_MAX_IDLE_PER_HOST, DEFAULT_IDLE_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Creates a pool that keeps at most maxIdlePerHost idle connections per host,
+     * each for at most idleTimeoutMillis.
+     *
+     * @param maxIdlePerHost
+     * @param idleTimeoutMillis
+     */
+    public ConnectionPool(int maxIdlePerHost, long idleTimeoutMillis) {
+        this(maxIdlePerHost, idleTimeoutMillis, Connector.getShared());
+    }
+
+    /**
+     * Same as above, but new connections are opened with the given Connector.
+     *
+     * @param maxIdlePerHost
+     * @param idleTimeoutMillis
+     * @param connector
+     */
+    public ConnectionPool(int maxIdlePerHost, long idleTimeoutMillis, Connector connector) {
+        if (maxIdlePerHost < 0 || idleTimeoutMillis < 0) {
+            throw new IllegalArgumentException("Pool limits can't be negative.");
+        }
+        if (connector == null) throw new IllegalArgumentException("Connector cannot be null.");
+        this.maxIdlePerHost = maxIdlePerHost;
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        this.connector = connector;
+    }
+
+    /**
+     * Returns an idle connection to the host if there is one, otherwise opens a
+     * new one. Give it back with release() when the response has been read.
+     *
+     * @param hostName
+     * @param port
+     * @return
+     * @throws IOException if a new connection can't be opened
+     */
+    public HttpConnection acquire(String hostName, int port) throws IOException {
+        String key = hostName + ":" + port;
+        long now = System.nanoTime();
+        synchronized (idle) {
+            ArrayDeque<HttpConnection> connections = idle.get(key);
+            while (connections != null && !connections.isEmpty()) {
+                HttpConnection connection = connections.pollFirst();
+                if (now - connection.getLastUsed() <= idleTimeoutNanos && !connection.isClosed()) {
+                    reused.incrementAndGet();
+                    return connection;
+                }
+                closeQuietly(connection);  // too old - the server has likely closed it
+            }
+        }
+
+        opened.incrementAndGet();
+        return HttpConnection.open(connector, hostName, port);
+    }
+
+    /**
+     * Opens connections to the host ahead of time and keeps them idle, so the
+     * first requests to it don't wait for the handshake. Opens at most as many
+     * as the pool keeps idle per host.
+     *
+     * @param hostName
+     * @param port
+     * @param connections
+     * @throws IOException if a connection can't be opened
+     */
+    public void warmUp(String hostName, int port, int connections) throws IOException {
+        List<HttpConnection> opening = new ArrayList<>();
+        try {
+            for (int i = 0; i < Math.min(connections, maxIdlePerHost); i++) {
+                opened.incrementAndGet();
+                opening.add(HttpConnection.open(connector, hostName, port));
+            }
+        }
+        finally {
+            for (HttpConnection connection : opening) release(connection);
+        }
+    }
+
+    /**
+     * Returns the Connector new connections are opened with.
+     *
+     * @return
+     */
+    public Connector getConnector() {
+        return connector;
+    }
+
+    /**
+     * Gives a connection back after its response was read completely. It's kept
+     * for the next request to the same host, or closed if the host already has
+     * as many idle connections as the pool keeps.
+     *
+     * @param connection
+     */
+    public void release(HttpConnection connection) {
+        if (connection.isClosed()) return;
+        connection.touch();
+
+        String key = connection.getHostName() + ":" + connection.getPort();
+        synchronized (idle) {
+            ArrayDeque<HttpConnection> connections = idle.computeIfAbsent(key, k -> new ArrayDeque<>());
+            if (connections.size() < maxIdlePerHost) {
+                connections.addFirst(connection);
+                return;
+            }
+        }
+        closeQuietly(connection);
+    }
+
+    /**
+     * Closes a connection that can't be reused (the response wasn't read to
+     * the end, or the server said it would close it).
+     *
+     * @param connection
+     */
+    public void discard(HttpConnection connection) {
+        closeQuietly(connection);
+    }
+
+    /**
+     * Closes every idle connection.
+     */
+    public void closeAll() {
+        synchronized (idle) {
+            for (ArrayDeque<HttpConnection> connections : idle.values()) {
+                for (HttpConnection connection : connections) closeQuietly(connection);
+            }
+            idle.clear();
+        }
+    }
+
+    /**
+     * Returns how many new connections the pool has opened.
+     *
+     * @return
+     */
+    public long getOpenedCount() {
+        return opened.get();
+    }
+
+    /**
+     * Returns how many times an idle connection was handed out again.
+     *
+     * @return
+     */
+    public long getReusedCount() {
+        return reused.get();
+    }
+
+    private static void closeQuietly(HttpConnection connection) {
+        try {
+            connection.close();
+        }
+        catch (IOException e) {
+            // it's going away either way
+        }
+    }
+}
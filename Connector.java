@@ -0,0 +1,257 @@
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Opens TCP connections to a host, with timeouts, trying the host's
+ * addresses in parallel ("happy eyeballs", RFC 8305). The addresses come
+ * from a DnsCache and are tried IPv6 and IPv4 in turn. The first attempt
+ * starts right away, and each following one starts if the ones before it
+ * haven't connected within a short delay (or as soon as one fails). The
+ * first connection made wins and the rest are closed, so one unreachable
+ * address costs a fraction of a second instead of a whole connect timeout.
+ *
+ * Safe to use from many threads at once.
+ *
+ * @author Sumneet
+ */
+public class Connector {
+
+    public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 10_000;
+    public static final int DEFAULT_READ_TIMEOUT_MILLIS = 30_000;
+    public static final long DEFAULT_ATTEMPT_DELAY_MILLIS = 250;
+
+    private static final Connector shared = new Connector();
+
+    // Runs the connection attempts. Daemon threads, so they never keep the program running.
+    private static final ExecutorService attempts = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "connect-attempt");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final DnsCache dns;
+    private final int connectTimeoutMillis;
+    private final int readTimeoutMillis;
+    private final long attemptDelayMillis;
+
+    /**
+     * Creates a connector over the shared DnsCache with the default timeouts.
+     */
+    public Connector() {
+        this(DnsCache.getShared(), DEFAULT_CONNECT_TIMEOUT_MILLIS, DEFAULT_READ_TIMEOUT_MILLIS, DEFAULT_ATTEMPT_DELAY_MILLIS);
+    }
+
+    /**
+     * Creates a connector. Timeouts are in milliseconds and 0 means wait
+     * forever. The connect timeout applies to each address tried; the read
+     * timeout is how long a read on the connection can wait for data.
+     *
+     * @param dns
+     * @param connectTimeoutMillis
+     * @param readTimeoutMillis
+     * @param attemptDelayMillis how long to give one address before also trying the next
+     */
+    public Connector(DnsCache dns, int connectTimeoutMillis, int readTimeoutMillis, long attemptDelayMillis) {
+        if (dns == null) throw new IllegalArgumentException("DnsCache cannot be null.");
+        if (connectTimeoutMillis < 0 || readTimeoutMillis < 0 || attemptDelayMillis < 0) {
+            throw new IllegalArgumentException("Timeouts can't be negative.");
+        }
+        this.dns = dns;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+        this.attemptDelayMillis = attemptDelayMillis;
+    }
+
+    /**
+     * Returns the connector everything uses unless told otherwise.
+     *
+     * @return
+     */
+    public static Connector getShared() {
+        return shared;
+    }
+
+    /**
+     * Connects to the host, with the read timeout set on the socket.
+     *
+     * @param hostName
+     * @param port
+     * @return
+     * @throws java.net.UnknownHostException if the host can't be found
+     * @throws IOException if no address could be connected to
+     */
+    public Socket connect(String hostName, int port) throws IOException {
+        return connect(hostName, port, false);
+    }
+
+    /**
+     * Same as connect(), but the connection is a blocking SocketChannel. The
+     * read timeout is set on its socket, which only applies to reads through
+     * the socket's streams, not to reads on the channel itself.
+     *
+     * @param hostName
+     * @param port
+     * @return
+     * @throws java.net.UnknownHostException if the host can't be found
+     * @throws IOException if no address could be connected to
+     */
+    public SocketChannel connectChannel(String hostName, int port) throws IOException {
+        return connect(hostName, port, true).getChannel();
+    }
+
+    /**
+     * Returns the read timeout in milliseconds (0 for none).
+     *
+     * @return
+     */
+    public int getReadTimeout() {
+        return readTimeoutMillis;
+    }
+
+    /**
+     * Returns the connect timeout in milliseconds (0 for none).
+     *
+     * @return
+     */
+    public int getConnectTimeout() {
+        return connectTimeoutMillis;
+    }
+
+    /**
+     * Returns the DnsCache the addresses come from.
+     *
+     * @return
+     */
+    public DnsCache getDnsCache() {
+        return dns;
+    }
+
+    private Socket connect(String hostName, int port, boolean channel) throws IOException {
+        List<InetAddress> addresses = interleave(dns.resolve(hostName));
+        if (addresses.size() == 1) {
+            Socket socket = newSocket(channel);
+            try {
+                socket.connect(new InetSocketAddress(addresses.get(0), port), connectTimeoutMillis);
+                socket.setSoTimeout(readTimeoutMillis);
+                return socket;
+            }
+            catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+
+        AtomicBoolean won = new AtomicBoolean(false);
+        List<Socket> sockets = new ArrayList<>();
+        ExecutorCompletionService<Socket> race = new ExecutorCompletionService<>(attempts);
+        int started = 0;
+        int failed = 0;
+        IOException failure = null;
+        try {
+            start(race, sockets, addresses.get(started++), port, channel, won);
+            while (true) {
+                Future<Socket> done = started < addresses.size()
+                        ? race.poll(attemptDelayMillis, TimeUnit.MILLISECONDS)
+                        : race.take();
+                if (done == null) {
+                    start(race, sockets, addresses.get(started++), port, channel, won);
+                    continue;
+                }
+                try {
+                    Socket socket = done.get();
+                    socket.setSoTimeout(readTimeoutMillis);
+                    synchronized (sockets) {
+                        sockets.remove(socket);  // everything still in the list gets closed
+                    }
+                    return socket;
+                }
+                catch (ExecutionException e) {
+                    failed++;
+                    Throwable cause = e.getCause();
+                    if (failure == null || cause instanceof SocketTimeoutException) {
+                        failure = cause instanceof IOException ? (IOException) cause : new IOException(cause);
+                    }
+                    if (failed == addresses.size()) {
+                        throw new IOException("Could not connect to any address of " + hostName + ": " + failure.getMessage(), failure);
+                    }
+                    // don't wait out the delay once an attempt has failed
+                    if (started < addresses.size()) start(race, sockets, addresses.get(started++), port, channel, won);
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while connecting to " + hostName);
+        }
+        finally {
+            // the losers: closing one that's still connecting stops it
+            won.set(true);
+            synchronized (sockets) {
+                for (Socket socket : sockets) closeQuietly(socket);
+                sockets.clear();
+            }
+        }
+    }
+
+    // one connection attempt; only the first to connect gets to keep its socket
+    private void start(ExecutorCompletionService<Socket> race, List<Socket> sockets, InetAddress address,
+                       int port, boolean channel, AtomicBoolean won) throws IOException {
+        Socket socket = newSocket(channel);
+        synchronized (sockets) {
+            sockets.add(socket);
+        }
+        race.submit(() -> {
+            socket.connect(new InetSocketAddress(address, port), connectTimeoutMillis);
+            if (!won.compareAndSet(false, true)) {
+                closeQuietly(socket);
+                throw new IOException("Another address connected first.");
+            }
+            return socket;
+        });
+    }
+
+    private static Socket newSocket(boolean channel) throws IOException {
+        return channel ? SocketChannel.open().socket() : new Socket();
+    }
+
+    // IPv6 and IPv4 addresses in turn, starting with whichever family came first
+    private static List<InetAddress> interleave(InetAddress[] addresses) {
+        List<InetAddress> first = new ArrayList<>();
+        List<InetAddress> second = new ArrayList<>();
+        boolean firstIs6 = addresses[0] instanceof Inet6Address;
+        for (InetAddress address : addresses) {
+            if ((address instanceof Inet6Address) == firstIs6) first.add(address);
+            else second.add(address);
+        }
+
+        List<InetAddress> result = new ArrayList<>(addresses.length);
+        for (int i = 0; i < Math.max(first.size(), second.size()); i++) {
+            if (i < first.size()) result.add(first.get(i));
+            if (i < second.size()) result.add(second.get(i));
+        }
+        return result;
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        }
+        catch (IOException e) {
+            // it's going away either way
+        }
+    }
+}
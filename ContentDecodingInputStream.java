@@ -0,0 +1,284 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decompresses a gzip or deflate response body as it's read, so the
+ * decoded content can be written straight to the file without holding the
+ * whole body anywhere.
+ *
+ * The gzip header and trailer are parsed here (the CRC and length in the
+ * trailer are checked), and only the deflate data in between goes to the
+ * Inflater. "deflate" bodies are zlib wrapped by the standard, but some
+ * servers send raw deflate data, so both are accepted. Inflaters are
+ * expensive to create, so they come from a shared pool and go back to it
+ * when the body ends or the stream is closed.
+ *
+ * @author Sumneet
+ */
+public class ContentDecodingInputStream extends InputStream {
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+    // The most idle Inflaters kept of each kind
+    private static final int MAX_POOLED = 32;
+
+    private static final ConcurrentLinkedQueue<Inflater> rawPool = new ConcurrentLinkedQueue<>();
+    private static final ConcurrentLinkedQueue<Inflater> zlibPool = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger rawPooled = new AtomicInteger();
+    private static final AtomicInteger zlibPooled = new AtomicInteger();
+
+    private static final int GZIP = 0;
+    private static final int DEFLATE = 1;
+
+    private final InputStream in;
+    private final int format;
+    private final byte[] buf = new byte[BUFFER_SIZE];
+    private int bufPos = 0;
+    private int bufLength = 0;
+    private Inflater inflater = null;
+    private boolean nowrap;
+    private final CRC32 crc = new CRC32();
+    private boolean started = false;
+    private boolean done = false;
+    private final byte[] single = new byte[1];
+
+    private ContentDecodingInputStream(InputStream in, int format) {
+        this.in = in;
+        this.format = format;
+    }
+
+    /**
+     * Wraps a body in whatever decoding its Content-Encoding header asks for.
+     * Returns the body itself for no encoding or "identity". Codings listed
+     * one after another are undone in reverse order.
+     *
+     * @param body
+     * @param contentEncoding the header's value, or null
+     * @return
+     * @throws IOException if the encoding isn't gzip or deflate
+     */
+    public static InputStream wrap(InputStream body, String contentEncoding) throws IOException {
+        if (contentEncoding == null) return body;
+        String[] codings = contentEncoding.toLowerCase(Locale.ROOT).split(",");
+        InputStream result = body;
+        for (int i = codings.length - 1; i >= 0; i--) {
+            String coding = codings[i].trim();
+            switch (coding) {
+                case "gzip":
+                case "x-gzip":
+                    result = new ContentDecodingInputStream(result, GZIP);
+                    break;
+                case "deflate":
+                    result = new ContentDecodingInputStream(result, DEFLATE);
+                    break;
+                case "identity":
+                case "":
+                    break;
+                default:
+                    throw new IOException("Unsupported Content-Encoding: " + coding);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns true if a body with this Content-Encoding needs decoding.
+     *
+     * @param contentEncoding the header's value, or null
+     * @return
+     */
+    public static boolean isEncoded(String contentEncoding) {
+        if (contentEncoding == null) return false;
+        for (String coding : contentEncoding.split(",")) {
+            String trimmed = coding.trim();
+            if (!trimmed.isEmpty() && !trimmed.equalsIgnoreCase("identity")) return true;
+        }
+        return false;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int n = read(single, 0, 1);
+        return n == -1 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        while (!done) {
+            if (inflater == null && !startMember()) break;
+
+            try {
+                int n = inflater.inflate(b, off, len);
+                if (n > 0) {
+                    if (format == GZIP) crc.update(b, off, n);
+                    return n;
+                }
+                if (inflater.finished()) {
+                    endMember();
+                }
+                else if (inflater.needsDictionary()) {
+                    throw new IOException("Deflate data that needs a preset dictionary isn't supported.");
+                }
+                else if (inflater.needsInput()) {
+                    if (fill() == -1) throw new EOFException("The body ended in the middle of the compressed data.");
+                    inflater.setInput(buf, bufPos, bufLength - bufPos);
+                }
+            }
+            catch (DataFormatException e) {
+                throw new IOException("Bad compressed data: " + e.getMessage());
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Gives the Inflater back to the pool. The body underneath isn't closed.
+     */
+    @Override
+    public void close() {
+        releaseInflater();
+        done = true;
+    }
+
+    /**
+     * Starts a gzip member (or the deflate stream). Returns false if the body
+     * is over instead.
+     */
+    private boolean startMember() throws IOException {
+        if (format == GZIP) {
+            // no more members, or an empty body (like a 304's) with nothing to decode
+            if (peek() == -1) {
+                finish();
+                return false;
+            }
+            readGzipHeader();
+            crc.reset();
+            nowrap = true;
+        }
+        else {
+            if (started || peek() == -1) {
+                finish();
+                return false;
+            }
+            // a zlib header is 0x78 ... with the two bytes a multiple of 31; otherwise it's raw deflate
+            fill(2);
+            int cmf = buf[bufPos] & 0xff;
+            int flg = bufLength - bufPos > 1 ? buf[bufPos + 1] & 0xff : 0;
+            nowrap = (cmf & 0x0f) != 8 || ((cmf << 8) | flg) % 31 != 0;
+        }
+        started = true;
+        inflater = acquireInflater(nowrap);
+        inflater.setInput(buf, bufPos, bufLength - bufPos);
+        return true;
+    }
+
+    // the inflater reached the end of the deflate data: take back what it didn't use
+    private void endMember() throws IOException {
+        bufPos = bufLength - inflater.getRemaining();
+        if (format == GZIP) {
+            long expectedCrc = readIntLE();
+            long expectedSize = readIntLE();
+            if (expectedCrc != crc.getValue()) throw new IOException("The gzip CRC doesn't match the content.");
+            if (expectedSize != (inflater.getBytesWritten() & 0xffffffffL)) {
+                throw new IOException("The gzip length doesn't match the content.");
+            }
+        }
+        releaseInflater();
+        if (format == DEFLATE) finish();
+    }
+
+    // gzip's 10 byte header and its optional fields (RFC 1952)
+    private void readGzipHeader() throws IOException {
+        if (readByte() != 0x1f || readByte() != 0x8b) throw new IOException("Not gzip data.");
+        if (readByte() != 8) throw new IOException("Unsupported gzip compression method.");
+        int flags = readByte();
+        for (int i = 0; i < 6; i++) readByte();  // modification time, extra flags, OS
+
+        if ((flags & 4) != 0) {  // FEXTRA
+            int length = readByte() | (readByte() << 8);
+            for (int i = 0; i < length; i++) readByte();
+        }
+        if ((flags & 8) != 0) {  // FNAME
+            while (readByte() != 0) { }
+        }
+        if ((flags & 16) != 0) {  // FCOMMENT
+            while (readByte() != 0) { }
+        }
+        if ((flags & 2) != 0) {  // FHCRC
+            readByte();
+            readByte();
+        }
+    }
+
+    // the body is over, so make sure it was read to its end
+    private void finish() throws IOException {
+        done = true;
+        bufPos = bufLength;
+        while (in.read(buf, 0, buf.length) != -1) { }
+    }
+
+    private long readIntLE() throws IOException {
+        return (readByte() | (readByte() << 8) | (readByte() << 16) | ((long) readByte() << 24)) & 0xffffffffL;
+    }
+
+    private int readByte() throws IOException {
+        if (bufPos == bufLength && fill() == -1) throw new EOFException("The body ended in the middle of the gzip data.");
+        return buf[bufPos++] & 0xff;
+    }
+
+    private int peek() throws IOException {
+        if (bufPos == bufLength && fill() == -1) return -1;
+        return buf[bufPos] & 0xff;
+    }
+
+    // reads more of the body once everything buffered has been used
+    private int fill() throws IOException {
+        int n = in.read(buf, 0, buf.length);
+        if (n == -1) return -1;
+        bufPos = 0;
+        bufLength = n;
+        return n;
+    }
+
+    // makes sure at least count bytes are buffered, if the body has that many
+    private void fill(int count) throws IOException {
+        if (bufPos > 0) {
+            System.arraycopy(buf, bufPos, buf, 0, bufLength - bufPos);
+            bufLength -= bufPos;
+            bufPos = 0;
+        }
+        while (bufLength < count) {
+            int n = in.read(buf, bufLength, buf.length - bufLength);
+            if (n == -1) return;
+            bufLength += n;
+        }
+    }
+
+    private static Inflater acquireInflater(boolean nowrap) {
+        Inflater inflater = (nowrap ? rawPool : zlibPool).poll();
+        if (inflater == null) return new Inflater(nowrap);
+        (nowrap ? rawPooled : zlibPooled).decrementAndGet();
+        return inflater;
+    }
+
+    private void releaseInflater() {
+        if (inflater == null) return;
+        inflater.reset();
+        AtomicInteger pooled = nowrap ? rawPooled : zlibPooled;
+        if (pooled.incrementAndGet() <= MAX_POOLED) {
+            (nowrap ? rawPool : zlibPool).offer(inflater);
+        }
+        else {
+            pooled.decrementAndGet();
+            inflater.end();
+        }
+        inflater = null;
+    }
+}
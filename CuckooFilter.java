@@ -0,0 +1,386 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Cuckoo Filter
+ *
+ * An approximate membership set built the same way as Cuckoo, but instead of
+ * the keys it only keeps a small fingerprint of each one. Every key has two
+ * candidate buckets of four fingerprint slots. The second bucket is found from
+ * the first bucket and the fingerprint alone (partial-key cuckoo hashing), so
+ * fingerprints can be kicked around and deleted without knowing their keys.
+ *
+ * mightContain never says false for a key that was added (and not deleted),
+ * but can say true for a key that wasn't, at roughly the rate given to the
+ * constructor. Only delete keys that were actually added.
+ *
+ * Fingerprints are bit-packed into a long array, so a filter costs about
+ * fingerprintBits / 0.95 bits per key when it is nearly full - around 10 bits
+ * per key for a 1% false positive rate.
+ *
+ * @author Sumneet Brar
+ */
+public class CuckooFilter<K> {
+
+  private static final int SLOTS_PER_BUCKET = 4; // fingerprints per bucket
+  private static final int MAX_KICKS = 500; // relocations before we call the filter full
+  private static final double MAX_LOAD = 0.95; // bucketized cuckoo filters fill to about 95%
+  private static final int SERIAL_MAGIC = 0x434b4631; // "CKF1"
+
+  private final int fingerprintBits; // bits in each fingerprint (1 - 32)
+  private final int buckets; // number of buckets
+  private final long[] table; // all the fingerprints, packed back to back
+
+  private int size; // number of fingerprints stored
+
+  // the single fingerprint that fell out of the last failed insert, if any
+  private boolean hasVictim = false;
+  private int victimBucket;
+  private int victimFingerprint;
+
+  /**
+   * Creates a filter sized for the given number of keys, using a 1% false
+   * positive rate.
+   *
+   * @param expectedKeys
+   */
+  public CuckooFilter(int expectedKeys) {
+    this(expectedKeys, 0.01);
+  }
+
+  /**
+   * Creates a filter sized for the given number of keys with roughly the given
+   * false positive rate. With four slots per bucket a lookup compares against
+   * up to eight fingerprints, so the fingerprint needs log2(8 / rate) bits.
+   *
+   * @param expectedKeys
+   * @param falsePositiveRate
+   */
+  public CuckooFilter(int expectedKeys, double falsePositiveRate) {
+    if (expectedKeys < 1)
+      throw new IllegalArgumentException("Expected keys must be positive.");
+    if (!(falsePositiveRate > 0 && falsePositiveRate < 1))
+      throw new IllegalArgumentException("False positive rate must be between 0 and 1.");
+
+    int bits = (int) Math.ceil(Math.log(2.0 * SLOTS_PER_BUCKET / falsePositiveRate) / Math.log(2));
+    fingerprintBits = Math.max(4, Math.min(32, bits));
+
+    long needed = (long) Math.ceil(expectedKeys / (MAX_LOAD * SLOTS_PER_BUCKET));
+    if (needed * SLOTS_PER_BUCKET * fingerprintBits / 64 >= Integer.MAX_VALUE)
+      throw new IllegalArgumentException("Too many expected keys.");
+    buckets = (int) Math.max(2, needed);
+
+    table = new long[(int) (((long) buckets * SLOTS_PER_BUCKET * fingerprintBits + 63) / 64)];
+  }
+
+  // used when reading a filter back in
+  private CuckooFilter(int fingerprintBits, int buckets, long[] table, int size) {
+    this.fingerprintBits = fingerprintBits;
+    this.buckets = buckets;
+    this.table = table;
+    this.size = size;
+  }
+
+  /**
+   * Adds the key's fingerprint. Returns false if the filter is too full to
+   * take it; the filter is still usable, but should be rebuilt bigger.
+   *
+   * @param key
+   * @return
+   */
+  public boolean put(K key) {
+    if (key == null)
+      throw new IllegalArgumentException("Key cannot be null.");
+    if (hasVictim) return false; // full - the victim already has nowhere to go
+
+    long hash = hash(key);
+    int fingerprint = fingerprint(hash);
+    int bucket1 = index(hash);
+    int bucket2 = altIndex(bucket1, fingerprint);
+
+    if (insertIntoBucket(bucket1, fingerprint) || insertIntoBucket(bucket2, fingerprint)) {
+      size++;
+      return true;
+    }
+
+    // both buckets are full - kick a random fingerprint out and move it to its other bucket
+    int bucket = (hash & 1) == 0 ? bucket1 : bucket2;
+    long random = hash;
+    for (int kick = 0; kick < MAX_KICKS; kick++) {
+      random = random * 6364136223846793005L + 1442695040888963407L;
+      int slot = (int) (random >>> 62); // 0 - 3
+      int kicked = getSlot(bucket, slot);
+      setSlot(bucket, slot, fingerprint);
+      fingerprint = kicked;
+
+      bucket = altIndex(bucket, fingerprint);
+      if (insertIntoBucket(bucket, fingerprint)) {
+        size++;
+        return true;
+      }
+    }
+
+    // keep the last homeless fingerprint so we don't lose a key that was already in
+    hasVictim = true;
+    victimBucket = bucket;
+    victimFingerprint = fingerprint;
+    size++;
+    return true;
+  }
+
+  /**
+   * Returns false if the key was definitely never added, or true if it
+   * probably was.
+   *
+   * @param key
+   * @return
+   */
+  public boolean mightContain(K key) {
+    if (key == null)
+      throw new IllegalArgumentException("Key cannot be null.");
+
+    long hash = hash(key);
+    int fingerprint = fingerprint(hash);
+    int bucket1 = index(hash);
+    int bucket2 = altIndex(bucket1, fingerprint);
+
+    if (hasVictim && victimFingerprint == fingerprint
+        && (victimBucket == bucket1 || victimBucket == bucket2)) {
+      return true;
+    }
+    return findInBucket(bucket1, fingerprint) >= 0 || findInBucket(bucket2, fingerprint) >= 0;
+  }
+
+  /**
+   * Removes one copy of the key's fingerprint. Returns true if one was found.
+   * Deleting a key that was never added can remove another key's fingerprint.
+   *
+   * @param key
+   * @return
+   */
+  public boolean delete(K key) {
+    if (key == null)
+      throw new IllegalArgumentException("Key cannot be null.");
+
+    long hash = hash(key);
+    int fingerprint = fingerprint(hash);
+    int bucket1 = index(hash);
+    int bucket2 = altIndex(bucket1, fingerprint);
+
+    if (removeFromBucket(bucket1, fingerprint) || removeFromBucket(bucket2, fingerprint)) {
+      size--;
+      reinsertVictim();
+      return true;
+    }
+    if (hasVictim && victimFingerprint == fingerprint
+        && (victimBucket == bucket1 || victimBucket == bucket2)) {
+      hasVictim = false;
+      size--;
+      return true;
+    }
+    return false;
+  }
+
+  // a delete freed a slot, so the victim might fit now
+  private void reinsertVictim() {
+    if (!hasVictim) return;
+    if (insertIntoBucket(victimBucket, victimFingerprint)
+        || insertIntoBucket(altIndex(victimBucket, victimFingerprint), victimFingerprint)) {
+      hasVictim = false;
+    }
+  }
+
+  /**
+   * Returns n, the number of fingerprints in the filter.
+   *
+   * @return
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Returns true if the filter is empty.
+   *
+   * @return true or false
+   */
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Returns the fraction of slots that are in use.
+   *
+   * @return
+   */
+  public double getLoadFactor() {
+    return (double) size / ((long) buckets * SLOTS_PER_BUCKET);
+  }
+
+  /**
+   * Returns the number of bits used per stored key.
+   *
+   * @return
+   */
+  public double getBitsPerKey() {
+    if (size == 0) return Double.NaN;
+    return (double) table.length * 64 / size;
+  }
+
+  /**
+   * Returns the number of bits in each fingerprint.
+   *
+   * @return
+   */
+  public int getFingerprintBits() {
+    return fingerprintBits;
+  }
+
+  /**
+   * Writes the filter to the given stream. The stream isn't closed.
+   *
+   * @param out
+   * @throws IOException
+   */
+  public void writeTo(OutputStream out) throws IOException {
+    DataOutputStream data = new DataOutputStream(out);
+    data.writeInt(SERIAL_MAGIC);
+    data.writeInt(fingerprintBits);
+    data.writeInt(buckets);
+    data.writeInt(size);
+    data.writeBoolean(hasVictim);
+    data.writeInt(victimBucket);
+    data.writeInt(victimFingerprint);
+    data.writeInt(table.length);
+    for (long word : table) {
+      data.writeLong(word);
+    }
+    data.flush();
+  }
+
+  /**
+   * Reads back a filter written by writeTo. The stream isn't closed.
+   *
+   * @param in
+   * @return
+   * @throws IOException
+   */
+  public static <K> CuckooFilter<K> readFrom(InputStream in) throws IOException {
+    DataInputStream data = new DataInputStream(in);
+    if (data.readInt() != SERIAL_MAGIC)
+      throw new IOException("Not a serialized cuckoo filter.");
+
+    int fingerprintBits = data.readInt();
+    int buckets = data.readInt();
+    int size = data.readInt();
+    boolean hasVictim = data.readBoolean();
+    int victimBucket = data.readInt();
+    int victimFingerprint = data.readInt();
+    int words = data.readInt();
+
+    if (fingerprintBits < 1 || fingerprintBits > 32 || buckets < 2
+        || words != (int) (((long) buckets * SLOTS_PER_BUCKET * fingerprintBits + 63) / 64)
+        || (hasVictim && (victimBucket < 0 || victimBucket >= buckets))) {
+      throw new IOException("Corrupt cuckoo filter header.");
+    }
+
+    long[] table = new long[words];
+    for (int i = 0; i < words; i++) {
+      table[i] = data.readLong();
+    }
+
+    CuckooFilter<K> filter = new CuckooFilter<>(fingerprintBits, buckets, table, size);
+    filter.hasVictim = hasVictim;
+    filter.victimBucket = victimBucket;
+    filter.victimFingerprint = victimFingerprint;
+    return filter;
+  }
+
+  // 64 bit hash of the key: the low bits pick the bucket, the high bits the fingerprint
+  private long hash(K key) {
+    long h = key.hashCode() * 0x9E3779B97F4A7C15L;
+    h ^= (h >>> 32);
+    h *= 0xff51afd7ed558ccdL;
+    h ^= (h >>> 33);
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= (h >>> 33);
+    return h;
+  }
+
+  // map the low 32 bits onto [0, buckets) without a division
+  private int index(long hash) {
+    return (int) (((hash & 0xffffffffL) * buckets) >>> 32);
+  }
+
+  // zero marks an empty slot, so fingerprints are never zero
+  private int fingerprint(long hash) {
+    int fingerprint = (int) ((hash >>> 32) & mask());
+    return fingerprint == 0 ? 1 : fingerprint;
+  }
+
+  // the other bucket only depends on this bucket and the fingerprint. (h - bucket) mod buckets
+  // takes us back again when applied twice, and unlike xor it works for any number of buckets
+  private int altIndex(int bucket, int fingerprint) {
+    int h = fingerprint * 0x5bd1e995;
+    h ^= (h >>> 15);
+    return (int) Math.floorMod((long) h - bucket, (long) buckets);
+  }
+
+  private long mask() {
+    return (1L << fingerprintBits) - 1;
+  }
+
+  private boolean insertIntoBucket(int bucket, int fingerprint) {
+    for (int slot = 0; slot < SLOTS_PER_BUCKET; slot++) {
+      if (getSlot(bucket, slot) == 0) {
+        setSlot(bucket, slot, fingerprint);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private int findInBucket(int bucket, int fingerprint) {
+    for (int slot = 0; slot < SLOTS_PER_BUCKET; slot++) {
+      if (getSlot(bucket, slot) == fingerprint) return slot;
+    }
+    return -1;
+  }
+
+  private boolean removeFromBucket(int bucket, int fingerprint) {
+    int slot = findInBucket(bucket, fingerprint);
+    if (slot < 0) return false;
+    setSlot(bucket, slot, 0);
+    return true;
+  }
+
+  // read the fingerprint at (bucket, slot) out of the packed table
+  private int getSlot(int bucket, int slot) {
+    long bit = ((long) bucket * SLOTS_PER_BUCKET + slot) * fingerprintBits;
+    int word = (int) (bit >>> 6);
+    int offset = (int) (bit & 63);
+
+    long value = table[word] >>> offset;
+    if (offset + fingerprintBits > 64) {
+      value |= table[word + 1] << (64 - offset);
+    }
+    return (int) (value & mask());
+  }
+
+  // write the fingerprint at (bucket, slot) into the packed table
+  private void setSlot(int bucket, int slot, int fingerprint) {
+    long bit = ((long) bucket * SLOTS_PER_BUCKET + slot) * fingerprintBits;
+    int word = (int) (bit >>> 6);
+    int offset = (int) (bit & 63);
+    long value = fingerprint & mask();
+
+    table[word] = (table[word] & ~(mask() << offset)) | (value << offset);
+    if (offset + fingerprintBits > 64) {
+      int spill = 64 - offset; // bits that fit in the first word
+      table[word + 1] = (table[word + 1] & ~(mask() >>> spill)) | (value >>> spill);
+    }
+  }
+}
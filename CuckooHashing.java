@@ -1,6 +1,12 @@
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Cuckoo Hashing
@@ -14,12 +20,30 @@ public class Cuckoo<K, V> {
 
   private static final double maxLoadFactor = 2.0; // Max load factor
   private static final double minLoadFactor = 0.1; // Min load factor
+  private static final int migrationStep = 8; // old slots moved per operation while resizing
+  private static final int maxKicks = 64; // displacements before we give up on a put
+  private static final int maxStashSize = 8; // homeless nodes we hold before starting the next resize
+  private static final double bulkLoadFactor = 0.5; // load factor putAll sizes the tables for
 
   private Node<K, V>[] table1;
   private Node<K, V>[] table2;
 
   private int tableSize; // Current size of the array
 
+  // incremental resizing: the previous tables stay around until every slot
+  // has been moved over, a few slots at a time
+  private boolean incrementalResize = false;
+  private Node<K, V>[] oldTable1;
+  private Node<K, V>[] oldTable2;
+  private int migrateIndex; // next slot of the old tables to move
+  // nodes that didn't fit anywhere, by key so looking in it stays O(1) however big it gets
+  private Map<K, Node<K, V>> stash = new LinkedHashMap<>();
+  private boolean resizePending = false; // the stash overflowed while a resize was running
+  private int stashRetries = 0; // stashed nodes still to try again after the last resize
+
+  // optional value -> keys index for containsValue and reverseLookup, null when off
+  private Map<V, Set<K>> valueIndex = null;
+
   /**
    * Creates the hash table, using the default initial size of 11.
    */
@@ -39,6 +63,61 @@ public class Cuckoo<K, V> {
     tableSize = 0;
   }
 
+  /**
+   * Switches this table to incremental resizing. Instead of rebuilding the
+   * whole table inside one put, a resize allocates the bigger tables and then
+   * every later operation moves a few slots across, so no single put has to
+   * pay for the whole rebuild.
+   */
+  public void enableIncrementalResize() {
+    incrementalResize = true;
+  }
+
+  /**
+   * Turns on the value index for this table, so containsValue and
+   * reverseLookup no longer scan both tables. The index is built from the
+   * current contents and then kept up to date by put and delete. Tables that
+   * never call this don't pay any memory for it.
+   */
+  public void enableValueIndex() {
+    if (valueIndex != null) return;
+
+    valueIndex = new HashMap<>();
+    addTableToIndex(table1);
+    addTableToIndex(table2);
+    if (oldTable1 != null) addTableToIndex(oldTable1);
+    if (oldTable2 != null) addTableToIndex(oldTable2);
+    for (Node<K, V> node : stash.values()) {
+      indexValue(node.key, node.value);
+    }
+  }
+
+  private void addTableToIndex(Node<K, V>[] table) {
+    for (Node<K, V> node : table) {
+      if (node != null) indexValue(node.key, node.value);
+    }
+  }
+
+  // record that key now maps to value (does nothing when the index is off)
+  private void indexValue(K key, V value) {
+    if (valueIndex == null) return;
+    Set<K> keys = valueIndex.get(value);
+    if (keys == null) {
+      keys = new HashSet<>();
+      valueIndex.put(value, keys);
+    }
+    keys.add(key);
+  }
+
+  // forget that key maps to value (does nothing when the index is off)
+  private void unindexValue(K key, V value) {
+    if (valueIndex == null) return;
+    Set<K> keys = valueIndex.get(value);
+    if (keys == null) return;
+    keys.remove(key);
+    if (keys.isEmpty()) valueIndex.remove(value);
+  }
+
   /**
    * Inserts a new key-value pair.
    * 
@@ -49,7 +128,13 @@ public class Cuckoo<K, V> {
     if (key == null)
       throw new IllegalArgumentException("Key cannot be null.");
 
+    if (incrementalResize) {
+      putIncremental(key, value);
+      return;
+    }
+
     if (containsKey(key)) delete(key);
+    indexValue(key, value);
 
     if (getLoadFactor() > maxLoadFactor) rehash();
     if (getLoadFactor() < minLoadFactor) rehash();
@@ -111,17 +196,348 @@ public class Cuckoo<K, V> {
     }
 
     // If we reach this point, it means we have a cycle. We need to rehash.
+    // The new key is already in the tables, but the last displaced node isn't.
     rehash();
-    put(key, value);
+    put(displaced.key, displaced.value);
+  }
+
+  /**
+   * Inserts all the given key-value pairs (keys[i] maps to values[i]). The
+   * tables are grown once, up front, to fit everything, and then every pair
+   * is placed directly - there's no containsKey + delete and no load factor
+   * check per pair like there is in put.
+   * 
+   * @param keys
+   * @param values
+   */
+  public void putAll(K[] keys, V[] values) {
+    if (keys.length != values.length)
+      throw new IllegalArgumentException("Keys and values must be the same length.");
+    for (K key : keys) {
+      if (key == null)
+        throw new IllegalArgumentException("Key cannot be null.");
+    }
+
+    int needed = (int) Math.ceil((tableSize + keys.length) / bulkLoadFactor);
+    if (needed > table1.length) resizeTo(needed);
+
+    // work out every position first, so the probes below are just array reads
+    int n = keys.length;
+    int[] positions1 = new int[n];
+    int[] positions2 = new int[n];
+    for (int i = 0; i < n; i++) {
+      positions1[i] = hash1(keys[i]);
+      positions2[i] = hash2(keys[i]);
+    }
+
+    // most pairs either replace a value or land in an empty slot. While there's
+    // an old generation or a stash the key may be in there, so an empty slot
+    // doesn't mean it's new
+    boolean lookElsewhere = oldTable1 != null || !stash.isEmpty();
+    List<Integer> collisions = new ArrayList<>();
+    for (int i = 0; i < n; i++) {
+      Node<K, V> node = table1[positions1[i]];
+      if (node == null || !node.key.equals(keys[i])) node = table2[positions2[i]];
+      if (node == null || !node.key.equals(keys[i])) node = lookElsewhere ? findNode(keys[i]) : null;
+
+      if (node != null) {
+        unindexValue(node.key, node.value);
+        indexValue(node.key, values[i]);
+        node.value = values[i];
+      } else if (table1[positions1[i]] == null) {
+        table1[positions1[i]] = new Node<>(keys[i], values[i]);
+        indexValue(keys[i], values[i]);
+        tableSize++;
+      } else if (table2[positions2[i]] == null) {
+        table2[positions2[i]] = new Node<>(keys[i], values[i]);
+        indexValue(keys[i], values[i]);
+        tableSize++;
+      } else {
+        collisions.add(i);
+      }
+    }
+
+    // the rest have to displace other nodes
+    for (int i : collisions) {
+      Node<K, V> existing = findNode(keys[i]); // the same key can show up twice in the input
+      if (existing != null) {
+        unindexValue(existing.key, existing.value);
+        indexValue(existing.key, values[i]);
+        existing.value = values[i];
+        continue;
+      }
+
+      indexValue(keys[i], values[i]);
+      tableSize++;
+      Node<K, V> homeless = place(new Node<>(keys[i], values[i]));
+      while (homeless != null) {
+        if (incrementalResize) {
+          // lookups check the stash in this mode; it overflows into a resize the way putIncremental's does
+          stash.put(homeless.key, homeless);
+          if (oldTable1 == null || stash.size() > maxStashSize) startResize();
+          break;
+        }
+        resizeTo(table1.length * 2);
+        homeless = place(homeless);
+      }
+    }
+  }
+
+  /**
+   * Rebuilds both tables at (at least) the given length, placing every node
+   * directly, including the old generation and the stash of a running
+   * resize. If a node doesn't fit, the tables are doubled and we start again,
+   * except in incremental mode, where it goes to the stash instead: keys whose
+   * hashes collide outright would otherwise keep doubling the tables forever.
+   */
+  private void resizeTo(int length) {
+    List<Node<K, V>> nodes = new ArrayList<>(tableSize);
+    for (Node<K, V> node : table1) {
+      if (node != null) nodes.add(node);
+    }
+    for (Node<K, V> node : table2) {
+      if (node != null) nodes.add(node);
+    }
+    if (oldTable1 != null) {
+      for (Node<K, V> node : oldTable1) {
+        if (node != null) nodes.add(node);
+      }
+      for (Node<K, V> node : oldTable2) {
+        if (node != null) nodes.add(node);
+      }
+    }
+    nodes.addAll(stash.values());
+
+    Map<K, Node<K, V>> leftover = new LinkedHashMap<>();
+    boolean placedAll = false;
+    while (!placedAll) {
+      table1 = newTable(length);
+      table2 = newTable(length);
+      placedAll = true;
+      for (Node<K, V> node : nodes) {
+        Node<K, V> homeless = place(node);
+        if (homeless == null) continue;
+        if (incrementalResize) {
+          leftover.put(homeless.key, homeless);
+          continue;
+        }
+        placedAll = false;
+        length *= 2;
+        break;
+      }
+    }
+    stash = leftover;
+    oldTable1 = null;
+    oldTable2 = null;
+    resizePending = false;
+    stashRetries = 0;
+  }
+
+  /**
+   * The incremental version of put. Moves a few slots of an ongoing resize,
+   * then does a bounded number of displacements; a node that still has no
+   * home goes to the stash and starts the next resize.
+   */
+  private void putIncremental(K key, V value) {
+    migrate(migrationStep);
+
+    // if the key is already here (in either generation), just replace its value
+    Node<K, V> existing = findNode(key);
+    if (existing != null) {
+      unindexValue(key, existing.value);
+      indexValue(key, value);
+      existing.value = value;
+      return;
+    }
+
+    indexValue(key, value);
+
+    if (getLoadFactor() > maxLoadFactor) startResize();
+
+    tableSize++;
+    Node<K, V> homeless = place(new Node<>(key, value));
+    if (homeless != null) {
+      stash.put(homeless.key, homeless);
+      if (oldTable1 == null || stash.size() > maxStashSize) startResize();
+    }
+  }
+
+  /**
+   * Tries to put the node into the current tables, kicking out at most
+   * maxKicks other nodes. Returns the node left without a home, or null.
+   */
+  private Node<K, V> place(Node<K, V> node) {
+    for (int i = 0; i < maxKicks; i++) {
+      int position1 = hash1(node.key);
+      if (table1[position1] == null) {
+        table1[position1] = node;
+        return null;
+      }
+
+      int position2 = hash2(node.key);
+      if (table2[position2] == null) {
+        table2[position2] = node;
+        return null;
+      }
+
+      // both are taken, kick a node out of alternating tables and carry it on
+      Node<K, V> kicked;
+      if (i % 2 == 0) {
+        kicked = table1[position1];
+        table1[position1] = node;
+      } else {
+        kicked = table2[position2];
+        table2[position2] = node;
+      }
+      node = kicked;
+    }
+    return node;
+  }
+
+  /**
+   * Allocates the bigger tables and keeps the current ones around as the old
+   * generation. If a resize is already running, finishing it here would cost
+   * O(n) in one put, so the next resize just waits for migrate to finish the
+   * running one a few slots at a time; until then homeless nodes wait in the
+   * stash.
+   */
+  private void startResize() {
+    if (oldTable1 != null) {
+      resizePending = true;
+      return;
+    }
+
+    oldTable1 = table1;
+    oldTable2 = table2;
+    table1 = newTable(oldTable1.length * 2);
+    table2 = newTable(oldTable2.length * 2);
+    migrateIndex = 0;
+  }
+
+  // Node is generic, and arrays of generic types can't be made directly
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private Node<K, V>[] newTable(int length) {
+    return (Node<K, V>[]) new Node[length];
+  }
+
+  /**
+   * Moves up to the given number of slots from the old tables into the new
+   * ones. Once the old tables are empty they're dropped, and then the stashed
+   * nodes get another chance to fit into the new tables, up to the same number
+   * per call, so even a big stash never makes one operation slow. After that
+   * the resize that was waiting (if any) starts.
+   */
+  private void migrate(int slots) {
+    if (oldTable1 != null) {
+      for (int i = 0; i < slots && migrateIndex < oldTable1.length; i++) {
+        Node<K, V> node1 = oldTable1[migrateIndex];
+        Node<K, V> node2 = oldTable2[migrateIndex];
+        oldTable1[migrateIndex] = null;
+        oldTable2[migrateIndex] = null;
+        migrateIndex++;
+
+        if (node1 != null) {
+          Node<K, V> homeless = place(node1);
+          if (homeless != null) stash.put(homeless.key, homeless);
+        }
+        if (node2 != null) {
+          Node<K, V> homeless = place(node2);
+          if (homeless != null) stash.put(homeless.key, homeless);
+        }
+      }
+
+      if (migrateIndex < oldTable1.length) return; // still more to move
+
+      oldTable1 = null;
+      oldTable2 = null;
+      stashRetries = stash.size();
+    }
+    if (stashRetries == 0) return;
+
+    // take nodes off the front of the stash; the ones that still don't fit go to the back
+    for (int i = 0; i < slots && stashRetries > 0 && !stash.isEmpty(); i++) {
+      Iterator<Node<K, V>> it = stash.values().iterator();
+      Node<K, V> node = it.next();
+      it.remove();
+      stashRetries--;
+      Node<K, V> homeless = place(node);
+      if (homeless != null) stash.put(homeless.key, homeless);
+    }
+    if (stashRetries > 0 && !stash.isEmpty()) return; // still more to try
+
+    stashRetries = 0;
+    if (resizePending || stash.size() > maxStashSize) {
+      resizePending = false;
+      startResize();
+    }
+  }
+
+  /**
+   * Finds the node holding the key in the current tables, the old tables
+   * of a running resize, or the stash. Returns null if it isn't anywhere.
+   */
+  private Node<K, V> findNode(K key) {
+    int position1 = hash1(key);
+    if (table1[position1] != null && table1[position1].key.equals(key)) return table1[position1];
+    int position2 = hash2(key);
+    if (table2[position2] != null && table2[position2].key.equals(key)) return table2[position2];
+
+    if (oldTable1 != null) {
+      position1 = hash1(key, oldTable1.length);
+      if (oldTable1[position1] != null && oldTable1[position1].key.equals(key)) return oldTable1[position1];
+      position2 = hash2(key, oldTable2.length);
+      if (oldTable2[position2] != null && oldTable2[position2].key.equals(key)) return oldTable2[position2];
+    }
+
+    return stash.get(key);
+  }
+
+  /**
+   * The incremental version of delete, which also has to look in the old
+   * tables and the stash.
+   */
+  private V deleteIncremental(K key) {
+    migrate(migrationStep);
+
+    Node<K, V> node = findNode(key);
+    if (node == null) return null; // key wasn't present
+
+    if (!removeNode(table1, hash1(key), node) && !removeNode(table2, hash2(key), node)) {
+      if (oldTable1 == null
+          || (!removeNode(oldTable1, hash1(key, oldTable1.length), node)
+              && !removeNode(oldTable2, hash2(key, oldTable2.length), node))) {
+        stash.remove(key);
+      }
+    }
+    tableSize--;
+    unindexValue(key, node.value);
+    return node.value;
+  }
+
+  private boolean removeNode(Node<K, V>[] table, int position, Node<K, V> node) {
+    if (table[position] != node) return false;
+    table[position] = null;
+    return true;
   }
 
   private int hash1(K key) {
-    return Math.abs(key.hashCode()) % table1.length;
+    return hash1(key, table1.length);
   }
 
   private int hash2(K key) {
-    int prime = 17;
-    return Math.abs((prime * key.hashCode())) % table2.length;
+    return hash2(key, table2.length);
+  }
+
+  private int hash1(K key, int length) {
+    return Math.abs(key.hashCode()) % length;
+  }
+
+  // hash2 has to scramble the bits: with just prime * hashCode, two keys that
+  // collide in table1 (equal mod length) would also collide in table2
+  private int hash2(K key, int length) {
+    int h = key.hashCode() * 0x9E3779B1;
+    h ^= (h >>> 16);
+    return (h & 0x7fffffff) % length;
   }
 
   /**
@@ -188,6 +604,12 @@ public class Cuckoo<K, V> {
     if (key == null)
       throw new IllegalArgumentException("Key cannot be null.");
 
+    if (incrementalResize) {
+      migrate(migrationStep);
+      Node<K, V> node = findNode(key);
+      return node == null ? null : node.value;
+    }
+
     int position1 = hash1(key);
     int position2 = hash2(key);
 
@@ -202,6 +624,58 @@ public class Cuckoo<K, V> {
     return null; // key is not present
   }
 
+  /**
+   * Looks up every key in the array, storing the value for keys[i] (or null)
+   * in out[i]. All the positions are worked out first and then each table is
+   * probed in its own pass, so the memory reads for different keys don't wait
+   * on each other. Returns the number of keys that were found.
+   * 
+   * @param keys
+   * @param out
+   * @return
+   */
+  public int getAll(K[] keys, V[] out) {
+    if (out.length < keys.length)
+      throw new IllegalArgumentException("Output array is too small.");
+
+    int n = keys.length;
+    if (incrementalResize) migrate(migrationStep);
+
+    int[] positions1 = new int[n];
+    int[] positions2 = new int[n];
+    for (int i = 0; i < n; i++) {
+      if (keys[i] == null)
+        throw new IllegalArgumentException("Key cannot be null.");
+      positions1[i] = hash1(keys[i]);
+      positions2[i] = hash2(keys[i]);
+    }
+
+    // first pass: table 1 for everything
+    int found = 0;
+    boolean[] hit = new boolean[n];
+    for (int i = 0; i < n; i++) {
+      Node<K, V> node = table1[positions1[i]];
+      if (node != null && node.key.equals(keys[i])) {
+        out[i] = node.value;
+        hit[i] = true;
+        found++;
+      }
+    }
+
+    // second pass: table 2 for the misses, then the old generation and stash if there are any
+    boolean lookElsewhere = oldTable1 != null || !stash.isEmpty();
+    for (int i = 0; i < n; i++) {
+      if (hit[i]) continue;
+      Node<K, V> node = table2[positions2[i]];
+      if (node == null || !node.key.equals(keys[i])) {
+        node = lookElsewhere ? findNode(keys[i]) : null;
+      }
+      out[i] = node == null ? null : node.value;
+      if (node != null) found++;
+    }
+    return found;
+  }
+
   /**
    * Removes a key-value pair, returning the deleted value.
    * Returns null if the key wasn’t present.
@@ -213,6 +687,8 @@ public class Cuckoo<K, V> {
     if (key == null)
       throw new IllegalArgumentException("Key cannot be null.");
 
+    if (incrementalResize) return deleteIncremental(key);
+
     int position1 = hash1(key);
     int position2 = hash2(key);
 
@@ -220,12 +696,14 @@ public class Cuckoo<K, V> {
       V value = table1[position1].value;
       table1[position1] = null;
       tableSize--;
+      unindexValue(key, value);
       return value;
     }
     if (table2[position2] != null && table2[position2].key.equals(key)) {
       V value = table2[position2].value;
       table2[position2] = null;
       tableSize--;
+      unindexValue(key, value);
       return value;
     }
     return null; // key wasn't present
@@ -241,6 +719,11 @@ public class Cuckoo<K, V> {
     if (key == null)
       throw new IllegalArgumentException("Key cannot be null.");
 
+    if (incrementalResize) {
+      migrate(migrationStep);
+      return findNode(key) != null;
+    }
+
     int position1 = hash1(key);
     int position2 = hash2(key);
 
@@ -262,17 +745,8 @@ public class Cuckoo<K, V> {
    * @return
    */
   public boolean containsValue(V value) {
-    for (int i = 0; i < table1.length; i++) {
-      if (table1[i] != null && table1[i].value.equals(value)) {
-        return true;
-      }
-    }
-    for (int i = 0; i < table2.length; i++) {
-      if (table2[i] != null && table2[i].value.equals(value)) {
-        return true;
-      }
-    }
-    return false; // Value not found
+    if (valueIndex != null) return valueIndex.containsKey(value);
+    return findValueNode(value) != null;
   }
 
   /**
@@ -303,17 +777,41 @@ public class Cuckoo<K, V> {
    * @return
    */
   public K reverseLookup(V value) {
-    for (int i = 0; i < table1.length; i++) {
-      if (table1[i] != null && table1[i].value.equals(value)) {
-        return table1[i].key;
+    if (valueIndex != null) {
+      Set<K> keys = valueIndex.get(value);
+      if (keys == null) return null; // Value not found
+      return keys.iterator().next();
+    }
+
+    Node<K, V> node = findValueNode(value);
+    if (node == null) return null; // Value not found
+    return node.key;
+  }
+
+  /**
+   * Scans every table (including the old ones while resizing) and the stash
+   * for a node with the given value.
+   */
+  private Node<K, V> findValueNode(V value) {
+    Node<K, V> node = scanForValue(table1, value);
+    if (node == null) node = scanForValue(table2, value);
+    if (node == null && oldTable1 != null) node = scanForValue(oldTable1, value);
+    if (node == null && oldTable2 != null) node = scanForValue(oldTable2, value);
+    if (node == null) {
+      for (Node<K, V> stashed : stash.values()) {
+        if (stashed.value.equals(value)) return stashed;
       }
     }
-    for (int i = 0; i < table2.length; i++) {
-      if (table2[i] != null && table2[i].value.equals(value)) {
-        return table2[i].key;
+    return node;
+  }
+
+  private Node<K, V> scanForValue(Node<K, V>[] table, V value) {
+    for (int i = 0; i < table.length; i++) {
+      if (table[i] != null && table[i].value.equals(value)) {
+        return table[i];
       }
     }
-    return null; // Value not found
+    return null;
   }
 
   /**
@@ -0,0 +1,168 @@
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers host name lookups for a while, so fetching many pages from the
+ * same host doesn't ask DNS every time. Failed lookups are remembered too,
+ * for a shorter time, so a bad host name doesn't get looked up over and over.
+ *
+ * Lookups can also run in the background (resolveAsync, warmUp), so the
+ * addresses are ready by the time a connection is needed. Several threads
+ * asking for the same host at once share one lookup.
+ *
+ * Safe to use from many threads at once.
+ *
+ * @author Sumneet
+ */
+public class DnsCache {
+
+    public static final long DEFAULT_TTL_MILLIS = 60_000;
+    public static final long DEFAULT_NEGATIVE_TTL_MILLIS = 10_000;
+
+    private static final DnsCache shared = new DnsCache();
+
+    // Runs the background lookups. Daemon threads, so they never keep the program running.
+    private static final ExecutorService lookups = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "dns-lookup");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Turns a host name into its addresses. The default one asks the system
+     * (InetAddress.getAllByName); another can be plugged in, like a stub for
+     * tests or a custom DNS client.
+     */
+    public interface Resolver {
+        InetAddress[] resolve(String hostName) throws UnknownHostException;
+    }
+
+    private final Resolver resolver;
+    private final long ttlNanos;
+    private final long negativeTtlNanos;
+    // host name -> its lookup (possibly still running) and when it stops counting
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a cache that asks the system, with the default TTLs.
+     */
+    public DnsCache() {
+        this(InetAddress::getAllByName, DEFAULT_TTL_MILLIS, DEFAULT_NEGATIVE_TTL_MILLIS);
+    }
+
+    /**
+     * Creates a cache over the given resolver that keeps addresses for
+     * ttlMillis and failures for negativeTtlMillis.
+     *
+     * @param resolver
+     * @param ttlMillis
+     * @param negativeTtlMillis
+     */
+    public DnsCache(Resolver resolver, long ttlMillis, long negativeTtlMillis) {
+        if (resolver == null) throw new IllegalArgumentException("Resolver cannot be null.");
+        if (ttlMillis < 0 || negativeTtlMillis < 0) throw new IllegalArgumentException("TTLs can't be negative.");
+        this.resolver = resolver;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.negativeTtlNanos = TimeUnit.MILLISECONDS.toNanos(negativeTtlMillis);
+    }
+
+    /**
+     * Returns the cache everything uses unless told otherwise.
+     *
+     * @return
+     */
+    public static DnsCache getShared() {
+        return shared;
+    }
+
+    /**
+     * Returns the host's addresses, looking them up if they aren't cached
+     * (or have expired). Waits for the lookup.
+     *
+     * @param hostName
+     * @return
+     * @throws UnknownHostException if the host can't be found
+     */
+    public InetAddress[] resolve(String hostName) throws UnknownHostException {
+        try {
+            return resolveAsync(hostName).get();
+        }
+        catch (ExecutionException e) {
+            throw asUnknownHost(hostName, e.getCause());
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UnknownHostException("Interrupted while looking up " + hostName);
+        }
+    }
+
+    /**
+     * Returns the host's addresses when they're ready, starting a lookup in
+     * the background if they aren't cached.
+     *
+     * @param hostName
+     * @return
+     */
+    public CompletableFuture<InetAddress[]> resolveAsync(String hostName) {
+        long now = System.nanoTime();
+        Entry entry = entries.compute(hostName, (name, old) -> {
+            if (old != null && (!old.lookup.isDone() || now - old.expires < 0)) return old;
+            return new Entry(name);
+        });
+        return entry.lookup;
+    }
+
+    /**
+     * Starts looking up every host, without waiting, so later fetches find
+     * them cached.
+     *
+     * @param hostNames
+     */
+    public void warmUp(Collection<String> hostNames) {
+        for (String hostName : hostNames) resolveAsync(hostName);
+    }
+
+    /**
+     * Forgets every cached lookup.
+     */
+    public void clear() {
+        entries.clear();
+    }
+
+    private static UnknownHostException asUnknownHost(String hostName, Throwable cause) {
+        if (cause instanceof CompletionException && cause.getCause() != null) cause = cause.getCause();
+        if (cause instanceof UnknownHostException) return (UnknownHostException) cause;
+        UnknownHostException e = new UnknownHostException("Could not look up " + hostName);
+        e.initCause(cause);
+        return e;
+    }
+
+    // one lookup; the expiry is set once it finishes, by how it finished
+    private class Entry {
+        private final CompletableFuture<InetAddress[]> lookup = new CompletableFuture<>();
+        private volatile long expires;
+
+        private Entry(String hostName) {
+            lookups.execute(() -> {
+                try {
+                    InetAddress[] addresses = resolver.resolve(hostName);
+                    if (addresses == null || addresses.length == 0) throw new UnknownHostException(hostName);
+                    expires = System.nanoTime() + ttlNanos;
+                    lookup.complete(addresses);
+                }
+                catch (Throwable e) {
+                    expires = System.nanoTime() + negativeTtlNanos;
+                    lookup.completeExceptionally(e);
+                }
+            });
+        }
+    }
+}
@@ -1,165 +1,718 @@
+import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.SequenceInputStream;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
- * This class fetches files from HTTPs servers. 
- * 
+ * This class fetches files from HTTPs servers.
+ *
+ * Each Fetch object downloads one resource, so any number of them can run
+ * at the same time (see FetchEngine for running many of them at once).
+ *
  * @author Sumneet
  */
 
 public class Fetch {
 
-    // The size of the buffer (array) we use to hold incoming data. It's
-    // sized at the moment to be large enough to contain the entire response.
-    private static final int BUFFER_SIZE = 600;
+    // How often a ProgressListener hears about a download unless told otherwise
+    public static final long DEFAULT_PROGRESS_INTERVAL = 1024 * 1024;
+
+    // The size of the buffer (array) we use to hold incoming data
+    private static final int BUFFER_SIZE = 16 * 1024;
+    // The buffer for copying bodies off a pooled connection
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+    // The buffer fetchNio() reads into. It's direct, so the socket reads and file
+    // writes go straight between it and the kernel without a copy into the heap.
+    private static final int NIO_BUFFER_SIZE = 1024 * 1024;
     // Create a socket so we can connect to the network
-    private static Socket theSocket = null; 
-    private static OutputStream outgoing = null;
-    private static DataInputStream incoming = null;
-    // The default server that is hosting our default page
-    private static String host;
-    // The default page that we are accessing
-    private static String page;
-    // Our default output file
-    private static File myFile;
+    private Socket theSocket = null;
+    private OutputStream outgoing = null;
+    private DataInputStream incoming = null;
+    // The server that is hosting our page, and its port (80 unless the host says host:port)
+    private final String host;
+    private final String hostName;
+    private final int port;
+    // The page that we are accessing
+    private final String page;
+    // Our output file
+    private final File myFile;
+    // Where to get kept-alive connections from, or null for one connection per fetch
+    private ConnectionPool pool = null;
+    // Opens our connections: where the addresses come from, and the timeouts
+    private Connector connector = Connector.getShared();
+    // Where earlier copies of pages are kept, and what it had for this page when the request went out
+    private FetchCache cache = null;
+    private FetchCache.Entry cached = null;
+    // Where finished requests report their timings, and who hears how a download is going
+    private FetchMetrics metrics = null;
+    private ProgressListener listener = null;
+    private long progressInterval = DEFAULT_PROGRESS_INTERVAL;
+    // The request going on now (or the last one), how much of its body has been written,
+    // and at what count the listener hears next
+    private FetchTiming timing;
+    private long bytesWritten = 0;
+    private long nextProgress = Long.MAX_VALUE;
+    private long progressTotal = -1;
 
     /**
-     * This method creates a socket that is connected to the user's requested server at
-     * port 80 (HTTP) and associates output and input streams with the socket.
-     * 
-     * @throws UnknownHostException
-     * @throws IOException
-     */ 
-    public static void createSocket() throws IOException {
+     * Creates a fetch of the given page from the given host into the given file.
+     * The host can end in :port to use a port other than 80. Nothing is sent
+     * until fetch() is called.
+     *
+     * @param host
+     * @param page
+     * @param myFile
+     */
+    public Fetch(String host, String page, File myFile) {
+        if (host == null || page == null || myFile == null) {
+            throw new IllegalArgumentException("Host, page and file cannot be null.");
+        }
+        this.host = host;
+        this.page = page;
+        this.myFile = myFile;
+
+        int colon = host.lastIndexOf(':');
+        if (colon > 0 && host.indexOf(':') == colon) {
+            try {
+                this.port = Integer.parseInt(host.substring(colon + 1));
+            }
+            catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Bad port in " + host);
+            }
+            this.hostName = host.substring(0, colon);
+        }
+        else {
+            this.port = 80;  // Port 80 is HTTP
+            this.hostName = host;
+        }
+        this.timing = new FetchTiming(host, page);
+    }
+
+    /**
+     * Downloads the page into the file: connects, sends the request, writes the
+     * content and closes the connection.
+     *
+     * @throws IOException if anything goes wrong along the way
+     */
+    public void fetch() throws IOException {
+        begin();
+        boolean succeeded = false;
         try {
-            theSocket = new Socket(host, 80);   // Port 80 is HTTP
-            outgoing = theSocket.getOutputStream();
-            incoming = new DataInputStream(theSocket.getInputStream());
-            if (outgoing != null && incoming != null) {}
+            if (pool != null) {
+                fetchPooled();
+            }
             else {
-                throw new IOException("Either the input or output stream was null", null);
+                createSocket();
+                try {
+                    sendPacket();
+                    writeOutput(incoming);
+                }
+                finally {
+                    theSocket.close();  // close the socket connection
+                }
             }
+            succeeded = true;
         }
-        catch (UnknownHostException e) {
-            System.out.println("The host could not be found! Please check any possible errors and try again.");
-            System.exit(1);
+        finally {
+            end(succeeded);
         }
     }
 
     /**
-     * This method constructs the outgoing packet and then writes
-     * it to the OutputStream.
-     * 
-     * @param host
-     * @param page
-     * @throws IOException
+     * Makes fetch() take its connection from the pool and give it back
+     * afterwards, so fetches to the same host share connections instead of
+     * each doing a TCP handshake. Pass null to go back to one connection per
+     * fetch.
+     *
+     * @param pool
+     */
+    public void setConnectionPool(ConnectionPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Sets the Connector used to open this fetch's own connections (pooled
+     * ones come from the pool's Connector). It decides the connect and read
+     * timeouts and caches the host's addresses.
+     *
+     * @param connector
+     */
+    public void setConnector(Connector connector) {
+        if (connector == null) throw new IllegalArgumentException("Connector cannot be null.");
+        this.connector = connector;
+    }
+
+    /**
+     * Returns the Connector this fetch opens its own connections with.
+     *
+     * @return
+     */
+    public Connector getConnector() {
+        return connector;
+    }
+
+    /**
+     * Makes every way of fetching check the cache first: if it has a copy of
+     * the page, the request asks the server to send the page only if it
+     * changed, and the copy is used when it didn't. Downloaded pages are put
+     * in the cache. Pass null to stop using one.
+     *
+     * @param cache
+     */
+    public void setCache(FetchCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Makes every request this fetch makes report its timing to metrics when
+     * it finishes. Pass null to stop.
+     *
+     * @param metrics
+     */
+    public void setMetrics(FetchMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Has the listener told how the body is coming along every interval
+     * bytes, and once at the end. Pass null to stop.
+     *
+     * @param listener
+     * @param interval
+     */
+    public void setProgressListener(ProgressListener listener, long interval) {
+        if (interval < 1) throw new IllegalArgumentException("Progress interval must be positive.");
+        this.listener = listener;
+        this.progressInterval = interval;
+    }
+
+    /**
+     * Returns where the time of the last request went (or of the one going on now).
+     *
+     * @return
      */
-    public static void sendPacket(String host, String page) {
+    public FetchTiming getTiming() {
+        return timing;
+    }
+
+    // starts timing a new request
+    private void begin() {
+        timing = new FetchTiming(host, page);
+        bytesWritten = 0;
+    }
+
+    // stops timing it and reports it
+    private void end(boolean succeeded) {
+        timing.finish(bytesWritten, succeeded);
+        if (metrics != null) metrics.record(timing);
+    }
+
+    // before a body is written: total is its length if we know it, otherwise -1
+    private void startProgress(long total) {
+        bytesWritten = 0;
+        progressTotal = total;
+        nextProgress = listener == null ? Long.MAX_VALUE : progressInterval;
+    }
+
+    // called for every piece of body written, so it has to stay cheap
+    private void wrote(int numBytes) {
+        bytesWritten += numBytes;
+        if (bytesWritten >= nextProgress) {
+            listener.progress(this, bytesWritten, progressTotal);
+            nextProgress = bytesWritten + progressInterval;
+        }
+    }
+
+    private void finishProgress() {
+        if (listener != null) listener.progress(this, bytesWritten, bytesWritten);
+    }
+
+    // fetch() over a kept-alive connection from the pool
+    private void fetchPooled() throws IOException {
+        pool.getConnector().getDnsCache().resolve(hostName);  // usually cached already; done here so it's timed on its own
+        timing.markDns();
+        HttpConnection connection = pool.acquire(hostName, port);
+        timing.markConnected();
+        boolean reused = connection.getRequestCount() > 0;
         try {
-            String packet = "GET " + page +  " HTTP/1.1\r\n"
-                        + "Host: " + host + "\r\n"
-                        + "Connection: close\r\n"
-                        + "\r\n";
-            System.out.println("Grabbing  "+ page + " from " + host);
-            outgoing.write(packet.getBytes());  // write the packet to the output stream
+            connection.send(requestBytes(true, true));
+            timing.markRequestSent();
+            boolean reusable = readResponse(connection.getInput());
+            if (reusable) pool.release(connection);
+            else pool.discard(connection);
         }
         catch (IOException e) {
-            System.out.println("Something went wrong while writing the packet to the outgoing data stream."
-            + " The program will exit now and you can try again.");
-            System.exit(1);
+            pool.discard(connection);
+            if (!reused) throw e;
+
+            // the server may have closed the idle connection just before we used it - try once more on a new one
+            HttpConnection fresh = HttpConnection.open(pool.getConnector(), hostName, port);
+            timing.markConnected();
+            try {
+                fresh.send(requestBytes(true, true));
+                timing.markRequestSent();
+                if (readResponse(fresh.getInput())) pool.release(fresh);
+                else pool.discard(fresh);
+            }
+            catch (IOException again) {
+                pool.discard(fresh);
+                throw again;
+            }
         }
     }
-    
+
     /**
-     * This method reads the incoming data, parses the header from the content, and writes
-     * the content to the user's given file. 
-     * 
-     * @param incoming The DataInputStream that holds the incoming data from the server
-     * @throws NullPointerException
-     * @throws IOException
+     * Fetches all the given pages from one host over a single kept-alive
+     * connection, sending up to depth requests ahead of the responses
+     * (pipelining), so small files don't each wait a round trip. Responses
+     * come back in the order the requests went out. If the server closes the
+     * connection part way, the pages it didn't answer are sent again on a new
+     * connection.
+     *
+     * @param pool where the connections come from and go back to
+     * @param fetches fetches that all have the same host
+     * @param depth how many requests can be waiting for a response at once
+     * @throws IOException if a connection fails without answering anything
      */
-    public static void writeOutput(DataInputStream incoming) {
+    public static void fetchPipelined(ConnectionPool pool, List<Fetch> fetches, int depth) throws IOException {
+        if (depth < 1) throw new IllegalArgumentException("Pipeline depth must be positive.");
+        if (fetches.isEmpty()) return;
+        Fetch first = fetches.get(0);
+        for (Fetch fetch : fetches) {
+            if (!fetch.hostName.equals(first.hostName) || fetch.port != first.port) {
+                throw new IllegalArgumentException("Pipelined fetches must all go to the same host.");
+            }
+        }
+
+        int answered = 0;  // responses read so far
+        while (answered < fetches.size()) {
+            HttpConnection connection = pool.acquire(first.hostName, first.port);
+            boolean fresh = connection.getRequestCount() == 0;
+            int answeredBefore = answered;
+            int sent = answered;
+            boolean reusable = true;
+            try {
+                while (answered < fetches.size() && reusable) {
+                    // keep the pipeline full
+                    while (sent < fetches.size() && sent - answered < depth) {
+                        Fetch next = fetches.get(sent);
+                        next.begin();
+                        connection.write(next.requestBytes(true, true));
+                        next.timing.markRequestSent();
+                        sent++;
+                    }
+                    connection.flush();
+
+                    Fetch current = fetches.get(answered);
+                    reusable = current.readResponse(connection.getInput());
+                    current.end(true);
+                    answered++;
+                }
+                if (reusable) pool.release(connection);
+                else pool.discard(connection);  // anything sent after this response was dropped - resend it
+            }
+            catch (IOException e) {
+                pool.discard(connection);
+                // a reused connection may just have gone stale, but a new one that answers nothing is a real failure
+                if (fresh && answered == answeredBefore) {
+                    fetches.get(answered).end(false);
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Same as fetch(), but over NIO channels, for large files. The response is
+     * read into one big direct buffer, the header is parsed right there in the
+     * buffer, and the body goes from the buffer to the file's channel up to a
+     * megabyte at a time, instead of through two streams. It doesn't send
+     * Accept-Encoding, so servers don't compress the body. Chunked bodies
+     * (and compressed ones from servers that compress anyway) can't be
+     * written as they are, so those still go through the stream readers.
+     * Always uses its own connection, even if a pool is set.
+     *
+     * @throws IOException if anything goes wrong along the way
+     */
+    public void fetchNio() throws IOException {
+        begin();
+        boolean succeeded = false;
         try {
-            int numBytes;
-            byte[] buf = new byte[BUFFER_SIZE];
-            FileOutputStream myWriter = new FileOutputStream(myFile); 
-            boolean emptyLineFound = false;  // becomes true when we have reached the end of the header
-
-            while((numBytes = incoming.read(buf)) != -1) { 
-                if(!emptyLineFound) {
-                    for(int i = 0; i < numBytes; i++) {
-                        // if we find the header
-                        if (buf[i] == '\r' && buf[i + 1] == '\n' && buf[i + 2] == '\r' && buf[i + 3] == '\n') { 
-                            emptyLineFound = true;
-                            myWriter.write(buf, i + 4, numBytes - (i + 4)); // write content after header to file
-                            break; // no need to continue the loop
+            fetchChannel();
+            succeeded = true;
+        }
+        finally {
+            end(succeeded);
+        }
+    }
+
+    private void fetchChannel() throws IOException {
+        connector.getDnsCache().resolve(hostName);  // usually cached already; done here so it's timed on its own
+        timing.markDns();
+        try (SocketChannel channel = connector.connectChannel(hostName, port);
+             Selector selector = Selector.open()) {
+            timing.markConnected();
+            // no Accept-Encoding: a compressed body would have to leave the direct buffer path for a stream
+            ByteBuffer request = ByteBuffer.wrap(requestBytes(false, false));
+            while (request.hasRemaining()) channel.write(request);
+            timing.markRequestSent();
+
+            // channel reads ignore the socket's read timeout, so wait for data with a selector instead
+            channel.configureBlocking(false);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+
+            ByteBuffer buffer = ByteBuffer.allocateDirect(NIO_BUFFER_SIZE);
+            buffer.flip();
+            HttpResponseParser head = new HttpResponseParser();
+            while (!head.feed(buffer)) {  // leaves the buffer at the start of the body
+                buffer.clear();
+                if (read(channel, selector, buffer) == -1) throw new EOFException("The connection closed in the middle of the header.");
+                timing.markFirstByte();
+                buffer.flip();
+            }
+            timing.markHeaderDone(head.getStatus());
+
+            if (head.isChunked() || ContentDecodingInputStream.isEncoded(head.getContentEncoding()) || head.getStatus() == 304) {
+                // the chunk framing or compression has to be taken out (or the page comes from the cache),
+                // so this goes through the stream readers
+                byte[] early = new byte[buffer.remaining()];
+                buffer.get(early);
+                key.cancel();
+                selector.selectNow();  // finishes the cancel, so the channel can block again
+                channel.configureBlocking(true);
+                // the socket's own stream does keep to the read timeout
+                InputStream in = new SequenceInputStream(new ByteArrayInputStream(early), channel.socket().getInputStream());
+                saveBody(head, new HttpBodyInputStream(in, head.getBodyLength(), head.isChunked()));
+                return;
+            }
+
+            try (FileChannel file = FileChannel.open(myFile.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                long remaining = head.getBodyLength();  // -1 means until the server closes
+                startProgress(remaining);
+                while (remaining != 0) {
+                    if (!buffer.hasRemaining()) {
+                        buffer.clear();
+                        if (read(channel, selector, buffer) == -1) {
+                            if (remaining > 0) throw new EOFException("The connection closed in the middle of the body.");
+                            break;
                         }
+                        buffer.flip();
                     }
+                    if (remaining > 0 && buffer.remaining() > remaining) {
+                        buffer.limit(buffer.position() + (int) remaining);  // don't write anything past the body
+                    }
+                    int numBytes = buffer.remaining();
+                    while (buffer.hasRemaining()) file.write(buffer);
+                    if (remaining > 0) remaining -= numBytes;
+                    wrote(numBytes);
                 }
-                else {
-                    myWriter.write(buf, 0, numBytes); // write the rest of the data
-                }
-                
+                finishProgress();
             }
-            myWriter.close(); //close the output stream
-            System.out.println("Writing data to " + myFile.toString());
+            updateCache(head);
         }
-        catch (NullPointerException file) {
-            System.out.println("Something went wrong while accessing the file you listed." 
-            + " The program will exit now and you can try again.");
-            System.exit(1);
+    }
+
+    // a read on a non-blocking channel that waits for data up to the read timeout, like a socket read does
+    private int read(SocketChannel channel, Selector selector, ByteBuffer buffer) throws IOException {
+        int numBytes;
+        while ((numBytes = channel.read(buffer)) == 0) {
+            if (selector.select(connector.getReadTimeout()) == 0) throw new SocketTimeoutException("Read timed out");
+            selector.selectedKeys().clear();
         }
-        catch (IOException e) {
-            System.out.println("Something went wrong while writing to the data to the output file." 
-            + " The program will exit now and you can try again.");
-            System.exit(1);
+        return numBytes;
+    }
+
+    // the GET request for this fetch, made conditional if the cache has a copy of the page
+    private byte[] requestBytes(boolean keepAlive, boolean acceptEncoding) {
+        cached = cache == null ? null : cache.lookup(host, page);
+        String packet = "GET " + page +  " HTTP/1.1\r\n"
+                    + "Host: " + host + "\r\n"
+                    + (acceptEncoding ? "Accept-Encoding: gzip, deflate\r\n" : "")
+                    + (cached != null && cached.getEtag() != null ? "If-None-Match: " + cached.getEtag() + "\r\n" : "")
+                    + (cached != null && cached.getLastModified() != null ? "If-Modified-Since: " + cached.getLastModified() + "\r\n" : "")
+                    + (keepAlive ? "" : "Connection: close\r\n")
+                    + "\r\n";
+        return packet.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Writes a response's body to the file, decompressed if it came
+     * compressed, and keeps a copy in the cache. For a 304 Not Modified
+     * the cached copy is written instead.
+     */
+    private void saveBody(HttpResponseParser head, HttpBodyInputStream body) throws IOException {
+        byte[] buf = new byte[COPY_BUFFER_SIZE];
+        int numBytes;
+        if (head.getStatus() == 304 && cached != null) {
+            while (body.read(buf, 0, buf.length) != -1) { }  // there shouldn't be a body, but the connection has to get past it
+            if (!cache.restore(cached, myFile)) {
+                throw new IOException("The cached copy of " + page + " was dropped before it could be used.");
+            }
+            return;
         }
+
+        boolean encoded = ContentDecodingInputStream.isEncoded(head.getContentEncoding());
+        startProgress(head.isChunked() || encoded ? -1 : head.getBodyLength());
+        try (InputStream content = ContentDecodingInputStream.wrap(body, head.getContentEncoding());
+             FileOutputStream myWriter = new FileOutputStream(myFile)) {
+            while ((numBytes = content.read(buf, 0, buf.length)) != -1) {
+                myWriter.write(buf, 0, numBytes);
+                wrote(numBytes);
+            }
+        }
+        finishProgress();
+        updateCache(head);
+    }
+
+    // keeps the downloaded page in the cache if the server said how to check it later
+    private void updateCache(HttpResponseParser head) throws IOException {
+        if (cache == null) return;
+        if (head.getStatus() != 200) {
+            cache.remove(host, page);
+            return;
+        }
+        String control = head.getHeader("cache-control");
+        if (control != null && control.toLowerCase(Locale.ROOT).contains("no-store")) {
+            cache.store(host, page, null, null, myFile);  // counts the miss but keeps nothing
+            return;
+        }
+        cache.store(host, page, head.getHeader("etag"), head.getHeader("last-modified"), myFile);
+    }
+
+    /**
+     * Reads one response off a kept-alive connection and writes its body to
+     * the file. Returns true if the connection can be used for another
+     * request: the whole body was read and the server didn't say it would
+     * close.
+     */
+    private boolean readResponse(InputStream in) throws IOException {
+        HttpResponseParser head = new HttpResponseParser();
+        int first = in.read();  // read apart from the rest only to time when the response started
+        if (first == -1) throw new EOFException("The connection closed before the response started.");
+        timing.markFirstByte();
+        head.feed(new byte[] {(byte) first}, 0, 1);
+        head.read(in);
+        timing.markHeaderDone(head.getStatus());
+        HttpBodyInputStream body = new HttpBodyInputStream(in, head.getBodyLength(), head.isChunked());
+        saveBody(head, body);
+        return body.isComplete() && head.isKeepAlive();
+    }
+
+    /**
+     * This method creates a socket that is connected to the user's requested server at
+     * its port (80 for HTTP) and associates output and input streams with the socket.
+     * The connection is made by this fetch's Connector, so it has its timeouts.
+     *
+     * @throws UnknownHostException if the host could not be found
+     * @throws IOException
+     */
+    public void createSocket() throws IOException {
+        connector.getDnsCache().resolve(hostName);  // usually cached already; done here so it's timed on its own
+        timing.markDns();
+        theSocket = connector.connect(hostName, port);
+        timing.markConnected();
+        outgoing = theSocket.getOutputStream();
+        incoming = new DataInputStream(theSocket.getInputStream());
+        if (outgoing == null || incoming == null) {
+            theSocket.close();
+            throw new IOException("Either the input or output stream was null", null);
+        }
+    }
+
+    /**
+     * This method constructs the outgoing packet and then writes
+     * it to the OutputStream.
+     *
+     * @throws IOException
+     */
+    public void sendPacket() throws IOException {
+        outgoing.write(requestBytes(false, true));  // write the packet to the output stream
+        timing.markRequestSent();
+    }
+
+    /**
+     * This method reads the incoming data, parses the header from the content, and writes
+     * the content to the file (with any chunking or compression taken out).
+     *
+     * @param incoming The DataInputStream that holds the incoming data from the server
+     * @throws IOException
+     */
+    public void writeOutput(DataInputStream incoming) throws IOException {
+        int numBytes = 0;
+        int headerBytes = 0;
+        byte[] buf = new byte[BUFFER_SIZE];
+        HttpResponseParser head = new HttpResponseParser();
+
+        // the header can end anywhere in a read, or take several reads
+        while (!head.isComplete()) {
+            numBytes = incoming.read(buf);
+            if (numBytes == -1) throw new EOFException("The connection closed in the middle of the header.");
+            timing.markFirstByte();
+            headerBytes = head.feed(buf, 0, numBytes);
+        }
+        timing.markHeaderDone(head.getStatus());
+
+        // the rest of the last read is the start of the body
+        InputStream rest = new SequenceInputStream(new ByteArrayInputStream(buf, headerBytes, numBytes - headerBytes), incoming);
+        saveBody(head, new HttpBodyInputStream(rest, head.getBodyLength(), head.isChunked()));
+    }
+
+    /**
+     * Returns the server this fetch downloads from.
+     *
+     * @return
+     */
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * Returns the server's name, without any :port.
+     *
+     * @return
+     */
+    public String getHostName() {
+        return hostName;
+    }
+
+    /**
+     * Returns the port this fetch connects to.
+     *
+     * @return
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Returns the page this fetch downloads.
+     *
+     * @return
+     */
+    public String getPage() {
+        return page;
+    }
+
+    /**
+     * Returns the file this fetch writes to.
+     *
+     * @return
+     */
+    public File getFile() {
+        return myFile;
     }
 
 
     /**
      * The main function takes in the user's input and sets up the appropriate variables
      * according the server and page that the user is trying to access. It also initializes
-     * the file we will be writing to. Then, it calls the createSocket() method to set up our 
-     * connection with the server and page. Next, it calls sendPacket() and writeOutput() to 
-     * send our request packet and interpret the resulting data. 
-     * 
+     * the file we will be writing to. Then, it calls fetch() to connect to the server,
+     * send our request packet and interpret the resulting data.
+     *
+     * With -m it instead reads a manifest of "host path file" lines and downloads all of
+     * them at once with a FetchEngine, and with -s it splits one download into byte ranges
+     * fetched at the same time (see SegmentedDownload).
+     *
      * @param args  An array of command-line arguments
-     * @throws Exception
      */
     public static void main(String[] args) {
-        try {
-            // if there are no arguments given, do not run
-            if (args.length < 1) {
-                System.out.println("Usage: <hostname> <resource> <filename>");
-                System.exit(1);
-            }
+        // if there are no arguments given, do not run
+        if (args.length < 1) {
+            System.out.println("Usage: [-s <segments>] <hostname> <resource> <filename>");
+            System.out.println("   or: -m <manifest> [threads] [connections per host]");
+            System.exit(1);
+        }
 
-            if (args.length > 0) {
-                host = args[0];
-            }
+        if (args[0].equals("-m")) {
+            runManifest(args);
+            return;
+        }
 
-            if(args.length > 1) {
-                page = args[1];
-            }
+        // -s <segments> downloads in that many ranges at once, resuming if it was interrupted
+        int segments = 0;
+        if (args[0].equals("-s") && args.length > 1) {
+            segments = Integer.parseInt(args[1]);
+            args = Arrays.copyOfRange(args, 2, args.length);
+        }
+
+        if (args.length < 3) {
+            System.out.println("Usage: [-s <segments>] <hostname> <resource> <filename>");
+            System.exit(1);
+        }
+
+        Fetch fetch = new Fetch(args[0], args[1], new File(args[2]));
+        try {
+            System.out.println("Grabbing  "+ fetch.getPage() + " from " + fetch.getHost());
+            if (segments > 0) new SegmentedDownload(fetch, segments).download();
+            else fetch.fetch();
+            System.out.println("Writing data to " + fetch.getFile().toString());
+        }
+        catch (UnknownHostException e) {
+            System.out.println("The host could not be found! Please check any possible errors and try again.");
+            System.exit(1);
+        }
+        catch (IOException e) {
+            System.out.println("Something went wrong while fetching the page: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    // the -m mode of main
+    private static void runManifest(String[] args) {
+        if (args.length < 2) {
+            System.out.println("Usage: -m <manifest> [threads] [connections per host]");
+            System.exit(1);
+        }
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : FetchEngine.DEFAULT_THREADS;
+        int perHost = args.length > 3 ? Integer.parseInt(args[3]) : FetchEngine.DEFAULT_PER_HOST;
 
-            if(args.length > 2) {
-                myFile = new File(args[2]);
+        ConnectionPool pool = new ConnectionPool(perHost, ConnectionPool.DEFAULT_IDLE_TIMEOUT_MILLIS);
+        FetchEngine engine = new FetchEngine(threads, perHost, pool);
+        try {
+            List<Future<File>> downloads = engine.submitManifest(new File(args[1]));
+            int failed = 0;
+            for (Future<File> download : downloads) {
+                try {
+                    download.get();
+                }
+                catch (ExecutionException e) {
+                    failed++;
+                    System.out.println("Failed: " + e.getCause().getMessage());
+                }
             }
-            
-            createSocket();
-            sendPacket(host, page);
-            writeOutput(incoming);
-            theSocket.close();  // close the socket connection 
+            System.out.println("Downloaded " + (downloads.size() - failed) + " of " + downloads.size() + " files.");
         }
         catch (IOException e) {
-            System.out.println("Something went wrong while closing the socket.");
+            System.out.println("Something went wrong while reading the manifest: " + e.getMessage());
             System.exit(1);
         }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            engine.shutdown();
+            pool.closeAll();
+        }
     }
-}
\ No newline at end of file
+}
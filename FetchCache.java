@@ -0,0 +1,366 @@
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps copies of downloaded pages on disk so they don't have to be
+ * downloaded again while they haven't changed. Every page the server gave
+ * an ETag or Last-Modified for is stored under its host and path. The next
+ * fetch of it sends If-None-Match / If-Modified-Since, and if the server
+ * answers 304 Not Modified the copy is used without the body being sent.
+ *
+ * The cache is kept under a total size and a number of pages, dropping
+ * the least recently used pages first. Its index is a file in the cache's
+ * directory, written by flush() and close(), so the cache can be reused
+ * after a restart.
+ *
+ * Safe to use from many threads at once. Pages are copied in and out
+ * without holding the cache's lock, so one thread's disk I/O doesn't hold
+ * up the others.
+ *
+ * @author Sumneet
+ */
+public class FetchCache implements Closeable {
+
+    public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+    public static final int DEFAULT_MAX_ENTRIES = 10_000;
+
+    private static final String INDEX_NAME = "index";
+    private static final String BODY_SUFFIX = ".body";
+
+    private final File directory;
+    private final long maxBytes;
+    private final int maxEntries;
+    // host + path -> entry, least recently used first
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes = 0;
+    private long nextId = 0;
+    private boolean dirty = false;
+
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * Opens (or creates) a cache in the directory with the default limits.
+     *
+     * @param directory
+     * @throws IOException if the directory or its index can't be read
+     */
+    public FetchCache(File directory) throws IOException {
+        this(directory, DEFAULT_MAX_BYTES, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * Opens (or creates) a cache in the directory that holds at most maxBytes
+     * of pages and at most maxEntries pages.
+     *
+     * @param directory
+     * @param maxBytes
+     * @param maxEntries
+     * @throws IOException if the directory or its index can't be read
+     */
+    public FetchCache(File directory, long maxBytes, int maxEntries) throws IOException {
+        if (maxBytes < 0 || maxEntries < 0) throw new IllegalArgumentException("Cache limits can't be negative.");
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.maxEntries = maxEntries;
+        Files.createDirectories(directory.toPath());
+        load();
+    }
+
+    /**
+     * Returns what's cached for the page, or null if nothing is.
+     *
+     * @param host
+     * @param page
+     * @return
+     */
+    public synchronized Entry lookup(String host, String page) {
+        return entries.get(key(host, page));
+    }
+
+    /**
+     * Copies the cached page into the file, after the server said it hasn't
+     * changed, and counts a hit. Returns false if the entry has been dropped
+     * from the cache in the meantime.
+     *
+     * @param entry
+     * @param target
+     * @return
+     * @throws IOException if the copy fails
+     */
+    public boolean restore(Entry entry, File target) throws IOException {
+        // the copy happens outside the lock; while it's going, the entry's file can't be deleted
+        synchronized (this) {
+            if (entries.get(entry.key) != entry) return false;
+            entry.readers++;
+        }
+        try {
+            Files.copy(bodyFile(entry).toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        finally {
+            synchronized (this) {
+                if (--entry.readers == 0 && entry.dropped) bodyFile(entry).delete();
+            }
+        }
+        synchronized (this) {
+            hits++;
+        }
+        return true;
+    }
+
+    /**
+     * Records a page that had to be downloaded (a miss) and keeps a copy of it
+     * if it can be revalidated later, that is, if the server gave it an ETag
+     * or a Last-Modified date. Anything cached for the page before is replaced,
+     * or dropped if the new copy can't be kept.
+     *
+     * @param host
+     * @param page
+     * @param etag the ETag header, or null
+     * @param lastModified the Last-Modified header, or null
+     * @param source the downloaded page
+     * @throws IOException if the copy fails
+     */
+    public void store(String host, String page, String etag, String lastModified, File source) throws IOException {
+        String key = key(host, page);
+        long size = source.length();
+        long id;
+        synchronized (this) {
+            misses++;
+            Entry old = entries.remove(key);
+            if (old != null) drop(old);
+            if ((etag == null && lastModified == null) || size > maxBytes) return;
+            id = nextId++;
+        }
+
+        // the copy happens outside the lock, into a file only this entry uses
+        Entry entry = new Entry(key, id, size, etag, lastModified);
+        File temp = new File(directory, entry.id + ".tmp");
+        try {
+            Files.copy(source.toPath(), temp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Files.move(temp.toPath(), bodyFile(entry).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e) {
+            temp.delete();
+            throw e;
+        }
+
+        synchronized (this) {
+            Entry old = entries.put(key, entry);  // another store of the same page may have finished meanwhile
+            if (old != null) drop(old);
+            totalBytes += size;
+            dirty = true;
+            evict();
+        }
+    }
+
+    /**
+     * Drops the page from the cache.
+     *
+     * @param host
+     * @param page
+     */
+    public synchronized void remove(String host, String page) {
+        Entry entry = entries.remove(key(host, page));
+        if (entry != null) drop(entry);
+    }
+
+    /**
+     * Returns how many fetches were answered from the cache.
+     *
+     * @return
+     */
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * Returns how many fetches had to download the page.
+     *
+     * @return
+     */
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * Returns how many pages are cached.
+     *
+     * @return
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the total size of the cached pages in bytes.
+     *
+     * @return
+     */
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * Writes the index to disk if anything changed since the last time.
+     *
+     * @throws IOException
+     */
+    public synchronized void flush() throws IOException {
+        if (!dirty) return;
+        File index = new File(directory, INDEX_NAME);
+        File temp = new File(directory, INDEX_NAME + ".tmp");
+        try (PrintWriter writer = new PrintWriter(temp, StandardCharsets.UTF_8)) {
+            // least recently used first, so loading it back keeps the order
+            for (Entry entry : entries.values()) {
+                writer.println(entry.id + "\t" + entry.size + "\t" + entry.key + "\t"
+                        + orEmpty(entry.etag) + "\t" + orEmpty(entry.lastModified));
+            }
+        }
+        Files.move(temp.toPath(), index.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        dirty = false;
+    }
+
+    /**
+     * Writes the index. The cached pages stay on disk for next time.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        flush();
+    }
+
+    // drops least recently used pages until the cache is within its limits
+    private void evict() {
+        Iterator<Entry> it = entries.values().iterator();
+        while ((totalBytes > maxBytes || entries.size() > maxEntries) && it.hasNext()) {
+            Entry entry = it.next();
+            it.remove();
+            drop(entry);
+        }
+    }
+
+    // deletes an entry's copy once it's out of the map, or once the last restore of it is done
+    private void drop(Entry entry) {
+        totalBytes -= entry.size;
+        if (entry.readers == 0) bodyFile(entry).delete();
+        else entry.dropped = true;
+        dirty = true;
+    }
+
+    // reads the index, skipping entries whose copy is gone, and deletes copies nothing points at
+    private void load() throws IOException {
+        File index = new File(directory, INDEX_NAME);
+        if (index.exists()) {
+            try (BufferedReader reader = new BufferedReader(new FileReader(index, StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] parts = line.split("\t", -1);
+                    if (parts.length != 5) continue;
+                    Entry entry;
+                    try {
+                        entry = new Entry(parts[2], Long.parseLong(parts[0]), Long.parseLong(parts[1]),
+                                orNull(parts[3]), orNull(parts[4]));
+                    }
+                    catch (NumberFormatException e) {
+                        continue;
+                    }
+                    nextId = Math.max(nextId, entry.id + 1);
+                    if (bodyFile(entry).length() != entry.size) continue;
+                    Entry old = entries.put(entry.key, entry);
+                    if (old != null) totalBytes -= old.size;
+                    totalBytes += entry.size;
+                }
+            }
+        }
+
+        Set<String> kept = new HashSet<>();
+        for (Entry entry : entries.values()) kept.add(bodyFile(entry).getName());
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if ((name.endsWith(BODY_SUFFIX) || name.endsWith(".tmp")) && !kept.contains(name)) file.delete();
+            }
+        }
+        evict();  // the limits may be smaller than last time
+    }
+
+    private File bodyFile(Entry entry) {
+        return new File(directory, Long.toHexString(entry.id) + BODY_SUFFIX);
+    }
+
+    private static String key(String host, String page) {
+        return host.toLowerCase(Locale.ROOT) + page;
+    }
+
+    private static String orEmpty(String value) {
+        return value == null ? "" : value;
+    }
+
+    private static String orNull(String value) {
+        return value.isEmpty() ? null : value;
+    }
+
+    /**
+     * One cached page and the validators the server gave for it.
+     */
+    public static class Entry {
+        private final String key;
+        private final long id;  // names the file the copy is kept in
+        private final long size;
+        private final String etag;
+        private final String lastModified;
+        // guarded by the cache: restores copying the file right now, and whether it's out of the cache
+        private int readers = 0;
+        private boolean dropped = false;
+
+        private Entry(String key, long id, long size, String etag, String lastModified) {
+            this.key = key;
+            this.id = id;
+            this.size = size;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * Returns the ETag to send as If-None-Match, or null.
+         *
+         * @return
+         */
+        public String getEtag() {
+            return etag;
+        }
+
+        /**
+         * Returns the date to send as If-Modified-Since, or null.
+         *
+         * @return
+         */
+        public String getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * Returns the size of the cached copy in bytes.
+         *
+         * @return
+         */
+        public long getSize() {
+            return size;
+        }
+    }
+}
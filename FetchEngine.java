@@ -0,0 +1,216 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs many Fetch downloads at the same time on a pool of worker threads,
+ * with a limit on how many connections are open to any one host at once.
+ *
+ * Downloads for a host that is already at its limit wait in that host's
+ * queue instead of holding a worker thread, so a slow or busy host never
+ * keeps the workers from downloading from other hosts. When a download
+ * finishes, the next one queued for the same host starts.
+ *
+ * @author Sumneet
+ */
+public class FetchEngine {
+
+    public static final int DEFAULT_THREADS = 64;
+    public static final int DEFAULT_PER_HOST = 4;
+
+    private final ExecutorService workers;
+    private final int perHostLimit;
+    private final ConnectionPool pool;  // null for one connection per download
+    private volatile FetchMetrics metrics = null;
+    // every host we've seen, with its queue and how many of its downloads are running
+    private final Map<String, HostQueue> hosts = new HashMap<>();
+
+    /**
+     * Creates an engine with the default number of threads and connections per host.
+     */
+    public FetchEngine() {
+        this(DEFAULT_THREADS, DEFAULT_PER_HOST);
+    }
+
+    /**
+     * Creates an engine with the given number of worker threads (the most downloads
+     * that run at once) and the most downloads that run at once against one host.
+     *
+     * @param threads
+     * @param perHostLimit
+     */
+    public FetchEngine(int threads, int perHostLimit) {
+        this(threads, perHostLimit, null);
+    }
+
+    /**
+     * Same as above, but downloads made by submit(host, page, file) share
+     * kept-alive connections from the given pool.
+     *
+     * @param threads
+     * @param perHostLimit
+     * @param pool
+     */
+    public FetchEngine(int threads, int perHostLimit, ConnectionPool pool) {
+        if (threads < 1 || perHostLimit < 1) {
+            throw new IllegalArgumentException("Threads and connections per host must be positive.");
+        }
+        this.workers = Executors.newFixedThreadPool(threads);
+        this.perHostLimit = perHostLimit;
+        this.pool = pool;
+    }
+
+    /**
+     * Queues a download of the page from the host into the file. The future completes
+     * with the file once it's written, or with the exception that stopped it.
+     *
+     * @param host
+     * @param page
+     * @param file
+     * @return
+     */
+    public Future<File> submit(String host, String page, File file) {
+        Fetch fetch = new Fetch(host, page, file);
+        fetch.setConnectionPool(pool);
+        fetch.setMetrics(metrics);
+        return submit(fetch);
+    }
+
+    /**
+     * Makes the downloads this engine sets up (with submit(host, page, file)
+     * or submitManifest) report their timings to metrics.
+     *
+     * @param metrics
+     */
+    public void setMetrics(FetchMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Queues an already set up Fetch.
+     *
+     * @param fetch
+     * @return
+     */
+    public Future<File> submit(Fetch fetch) {
+        Download download = new Download(fetch);
+        HostQueue queue;
+        boolean start;
+        synchronized (hosts) {
+            queue = hosts.computeIfAbsent(fetch.getHost(), h -> new HostQueue());
+            start = queue.running < perHostLimit;
+            if (start) queue.running++;
+            else queue.waiting.add(download);
+        }
+        if (start) run(queue, download);
+        return download.result;
+    }
+
+    /**
+     * Reads a manifest and queues every download in it. Each line is
+     * "host path file", separated by whitespace; blank lines and lines
+     * starting with # are skipped.
+     *
+     * @param manifest
+     * @return the futures, in the order of the manifest
+     * @throws IOException if the manifest can't be read or has a bad line
+     */
+    public List<Future<File>> submitManifest(File manifest) throws IOException {
+        List<Fetch> fetches = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(manifest))) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+
+                String[] parts = line.split("\\s+");
+                if (parts.length != 3) {
+                    throw new IOException("Line " + lineNumber + " of the manifest should be \"host path file\".");
+                }
+                Fetch fetch = new Fetch(parts[0], parts[1], new File(parts[2]));
+                fetch.setConnectionPool(pool);
+                fetch.setMetrics(metrics);
+                fetches.add(fetch);
+            }
+        }
+
+        // only start once the whole manifest is good, and look every host up in the background meanwhile
+        for (Fetch fetch : fetches) {
+            Connector connector = pool != null ? pool.getConnector() : fetch.getConnector();
+            connector.getDnsCache().resolveAsync(fetch.getHostName());
+        }
+        List<Future<File>> results = new ArrayList<>();
+        for (Fetch fetch : fetches) {
+            results.add(submit(fetch));
+        }
+        return results;
+    }
+
+    /**
+     * Stops taking new downloads and lets the queued ones finish.
+     */
+    public void shutdown() {
+        workers.shutdown();
+    }
+
+    /**
+     * Waits for every download to finish after shutdown.
+     *
+     * @param timeout
+     * @param unit
+     * @return false if the time ran out first
+     * @throws InterruptedException
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return workers.awaitTermination(timeout, unit);
+    }
+
+    private void run(HostQueue queue, Download download) {
+        workers.execute(() -> {
+            Download current = download;
+            while (current != null) {
+                try {
+                    current.fetch.fetch();
+                    current.result.complete(current.fetch.getFile());
+                }
+                catch (Throwable e) {
+                    current.result.completeExceptionally(e);
+                }
+
+                // keep going with this host's queue while we hold one of its slots
+                synchronized (hosts) {
+                    current = queue.waiting.poll();
+                    if (current == null) queue.running--;
+                }
+            }
+        });
+    }
+
+    // the downloads waiting for one host
+    private static class HostQueue {
+        private final ArrayDeque<Download> waiting = new ArrayDeque<>();
+        private int running = 0;
+    }
+
+    private static class Download {
+        private final Fetch fetch;
+        private final CompletableFuture<File> result = new CompletableFuture<>();
+
+        private Download(Fetch fetch) {
+            this.fetch = fetch;
+        }
+    }
+}
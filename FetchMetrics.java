@@ -0,0 +1,198 @@
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Adds up the timings of many fetches: request, failure and byte counts,
+ * and per host, histograms of how long requests took and how long their
+ * first byte took. The histograms have one bucket per power of two
+ * microseconds, so they stay small no matter how many requests go in, and
+ * percentiles read from them are accurate to within a factor of two.
+ *
+ * Fetches report here once they finish (see Fetch.setMetrics), never from
+ * the middle of a download. Safe to use from many threads at once.
+ *
+ * @author Sumneet
+ */
+public class FetchMetrics {
+
+    private long requests = 0;
+    private long failures = 0;
+    private long bytes = 0;
+    private long bodyNanos = 0;
+    // host -> its numbers, sorted so the JSON comes out in a stable order
+    private final Map<String, HostStats> hosts = new TreeMap<>();
+
+    /**
+     * Adds a finished request.
+     *
+     * @param timing
+     */
+    public synchronized void record(FetchTiming timing) {
+        requests++;
+        if (!timing.isSucceeded()) failures++;
+        bytes += timing.getBytes();
+        bodyNanos += timing.getBodyNanos();
+
+        HostStats stats = hosts.computeIfAbsent(timing.getHost(), h -> new HostStats());
+        stats.requests++;
+        if (!timing.isSucceeded()) stats.failures++;
+        stats.bytes += timing.getBytes();
+        stats.total.record(timing.getTotalNanos());
+        if (timing.getFirstByteNanos() > 0) stats.firstByte.record(timing.getFirstByteNanos());
+    }
+
+    /**
+     * Returns how many requests were recorded.
+     *
+     * @return
+     */
+    public synchronized long getRequestCount() {
+        return requests;
+    }
+
+    /**
+     * Returns how many of them failed.
+     *
+     * @return
+     */
+    public synchronized long getFailureCount() {
+        return failures;
+    }
+
+    /**
+     * Returns how many body bytes were written in all.
+     *
+     * @return
+     */
+    public synchronized long getByteCount() {
+        return bytes;
+    }
+
+    /**
+     * Returns the bytes written per second of body transfer, over every request.
+     *
+     * @return
+     */
+    public synchronized double getThroughput() {
+        return bodyNanos == 0 ? 0 : bytes * 1e9 / bodyNanos;
+    }
+
+    /**
+     * Returns a percentile (0 to 100) of the host's request times in
+     * microseconds, as the top of the histogram bucket it falls in, or 0 if
+     * the host has no requests.
+     *
+     * @param host
+     * @param percentile
+     * @return
+     */
+    public synchronized long getLatencyPercentile(String host, double percentile) {
+        HostStats stats = hosts.get(host);
+        return stats == null ? 0 : stats.total.percentile(percentile);
+    }
+
+    /**
+     * Forgets everything recorded so far.
+     */
+    public synchronized void reset() {
+        requests = 0;
+        failures = 0;
+        bytes = 0;
+        bodyNanos = 0;
+        hosts.clear();
+    }
+
+    /**
+     * Returns everything as a JSON object: the totals, then an object per host
+     * with its counts and its two histograms (bucket keys are the top of each
+     * bucket in microseconds).
+     *
+     * @return
+     */
+    public synchronized String toJson() {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"requests\":").append(requests)
+            .append(",\"failures\":").append(failures)
+            .append(",\"bytes\":").append(bytes)
+            .append(",\"bytesPerSecond\":").append((long) getThroughput())
+            .append(",\"hosts\":{");
+        boolean first = true;
+        for (Map.Entry<String, HostStats> entry : hosts.entrySet()) {
+            if (!first) json.append(',');
+            first = false;
+            HostStats stats = entry.getValue();
+            json.append(quote(entry.getKey()))
+                .append(":{\"requests\":").append(stats.requests)
+                .append(",\"failures\":").append(stats.failures)
+                .append(",\"bytes\":").append(stats.bytes)
+                .append(",\"latency\":");
+            stats.total.appendJson(json);
+            json.append(",\"firstByte\":");
+            stats.firstByte.appendJson(json);
+            json.append('}');
+        }
+        return json.append("}}").toString();
+    }
+
+    // a JSON string literal
+    static String quote(String text) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') quoted.append('\\').append(c);
+            else if (c < 0x20) quoted.append(String.format("\\u%04x", (int) c));
+            else quoted.append(c);
+        }
+        return quoted.append('"').toString();
+    }
+
+    private static class HostStats {
+        private long requests = 0;
+        private long failures = 0;
+        private long bytes = 0;
+        private final Histogram total = new Histogram();
+        private final Histogram firstByte = new Histogram();
+    }
+
+    // counts of times in microseconds; bucket i holds [2^i, 2^(i+1))
+    private static class Histogram {
+        private final long[] buckets = new long[64];
+        private long count = 0;
+        private long max = 0;
+
+        private void record(long nanos) {
+            long micros = Math.max(1, nanos / 1000);
+            buckets[63 - Long.numberOfLeadingZeros(micros)]++;
+            count++;
+            max = Math.max(max, micros);
+        }
+
+        private long percentile(double percentile) {
+            if (count == 0) return 0;
+            long rank = (long) Math.ceil(count * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= Math.max(1, rank)) return Math.min(max, (2L << i) - 1);
+            }
+            return max;
+        }
+
+        private void appendJson(StringBuilder json) {
+            json.append("{\"count\":").append(count)
+                .append(",\"p50Micros\":").append(percentile(50))
+                .append(",\"p90Micros\":").append(percentile(90))
+                .append(",\"p99Micros\":").append(percentile(99))
+                .append(",\"maxMicros\":").append(max)
+                .append(",\"buckets\":{");
+            boolean first = true;
+            for (int i = 0; i < buckets.length; i++) {
+                if (buckets[i] == 0) continue;
+                if (!first) json.append(',');
+                first = false;
+                json.append('"').append((2L << i) - 1).append("\":").append(buckets[i]);
+            }
+            json.append("}}");
+        }
+    }
+}
@@ -0,0 +1,592 @@
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs large batches of downloads politely: each host gets a limited rate
+ * of requests (a token bucket) and a limited number at once, while all the
+ * hosts together keep the workers busy. There can be a global rate limit
+ * on top.
+ *
+ * Downloads have a priority. Each host's downloads are taken highest
+ * priority first, and hosts take turns (round robin) among those whose next
+ * download has the highest priority, so one host with a huge queue can't
+ * starve the others. A host that's out of tokens or at its limit steps
+ * aside until it can go again, so it costs nothing while it waits.
+ *
+ * Failed downloads (connections refused, timed out or reset, and 408, 429,
+ * 500, 502, 503 and 504 answers) are tried again after an exponential
+ * backoff with random jitter, up to a number of attempts. Other failures,
+ * like a bad response or a file that can't be written, would only happen
+ * again, so they aren't retried. A 429 or 503 also empties the host's
+ * bucket, since the server is asking us to slow down.
+ *
+ * Memory stays bounded: at most maxPending downloads can be waiting or
+ * running at once, and submit() blocks while the scheduler is full.
+ *
+ * @author Sumneet
+ */
+public class FetchScheduler {
+
+    public static final int DEFAULT_THREADS = 64;
+    public static final int DEFAULT_PER_HOST = 2;
+    public static final double DEFAULT_HOST_RATE = 2.0;  // requests per second
+    public static final int DEFAULT_MAX_PENDING = 100_000;
+    public static final int DEFAULT_MAX_ATTEMPTS = 4;
+    public static final long DEFAULT_BASE_DELAY_MILLIS = 500;
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 30_000;
+
+    // How often hosts with nothing to do and full buckets are forgotten
+    private static final long SWEEP_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final ExecutorService workers;
+    private final Thread dispatcher;
+    private final int threads;
+    private final int perHostLimit;
+    private final double hostRate;
+    private final int maxPending;
+    private final ConnectionPool pool;  // null for one connection per download
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();  // wakes the dispatcher
+    private final Condition notFull = lock.newCondition();  // wakes blocked submitters
+
+    // everything below is guarded by lock
+    private final TokenBucket global;
+    private final Map<String, HostState> hosts = new HashMap<>();
+    private final Map<String, double[]> hostRates = new HashMap<>();  // per host overrides: {rate, burst}
+    // hosts that can go now, by the priority of their next download (highest first), each in turn order
+    private final TreeMap<Integer, ArrayDeque<HostState>> ready = new TreeMap<>(Collections.reverseOrder());
+    // hosts waiting for a token, soonest first
+    private final PriorityQueue<HostState> waiting = new PriorityQueue<>((a, b) -> Long.compare(a.wakeAt, b.wakeAt));
+    // downloads waiting to be tried again, soonest first
+    private final PriorityQueue<Task> retries = new PriorityQueue<>((a, b) -> Long.compare(a.dueAt, b.dueAt));
+    private int pending = 0;
+    private int inFlight = 0;
+    private long sequence = 0;
+    private long lastSweep = System.nanoTime();
+    private boolean shutdown = false;
+
+    private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+    private long baseDelayNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_BASE_DELAY_MILLIS);
+    private long maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_MAX_DELAY_MILLIS);
+    private FetchMetrics metrics = null;
+
+    private long completed = 0;
+    private long failed = 0;
+    private long retried = 0;
+
+    /**
+     * Creates a scheduler with the defaults and no global rate limit.
+     */
+    public FetchScheduler() {
+        this(DEFAULT_THREADS, DEFAULT_PER_HOST, DEFAULT_HOST_RATE, 0, DEFAULT_MAX_PENDING, null);
+    }
+
+    /**
+     * Creates a scheduler.
+     *
+     * @param threads the most downloads that run at once
+     * @param perHostLimit the most downloads that run at once against one host
+     * @param hostRate requests per second each host gets (0 for no limit)
+     * @param globalRate requests per second for all hosts together (0 for no limit)
+     * @param maxPending the most downloads that can be waiting or running at once
+     * @param pool where downloads get kept-alive connections from, or null for their own
+     */
+    public FetchScheduler(int threads, int perHostLimit, double hostRate, double globalRate, int maxPending, ConnectionPool pool) {
+        if (threads < 1 || perHostLimit < 1 || maxPending < 1) {
+            throw new IllegalArgumentException("Threads, connections per host and pending limit must be positive.");
+        }
+        if (hostRate < 0 || globalRate < 0) throw new IllegalArgumentException("Rates can't be negative.");
+        this.threads = threads;
+        this.perHostLimit = perHostLimit;
+        this.hostRate = hostRate;
+        this.maxPending = maxPending;
+        this.pool = pool;
+        this.global = new TokenBucket(globalRate, Math.max(1, (int) Math.ceil(globalRate)));
+        this.workers = Executors.newFixedThreadPool(threads);
+        this.dispatcher = new Thread(this::dispatch, "fetch-scheduler");
+        this.dispatcher.start();
+    }
+
+    /**
+     * Gives one host its own rate instead of the default, for hosts that
+     * allow more (or ask for less). burst is how many requests it can make
+     * back to back after being idle.
+     *
+     * @param host
+     * @param rate requests per second (0 for no limit)
+     * @param burst
+     */
+    public void setHostRate(String host, double rate, int burst) {
+        if (rate < 0 || burst < 1) throw new IllegalArgumentException("Rate can't be negative and burst must be positive.");
+        lock.lock();
+        try {
+            hostRates.put(host, new double[] {rate, burst});
+            HostState state = hosts.get(host);
+            if (state != null) state.bucket = new TokenBucket(rate, burst);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets how many times a download is tried in all, and the backoff between
+     * tries: the nth retry waits a random time up to baseDelayMillis * 2^(n-1),
+     * but never more than maxDelayMillis.
+     *
+     * @param maxAttempts
+     * @param baseDelayMillis
+     * @param maxDelayMillis
+     */
+    public void setRetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis) {
+        if (maxAttempts < 1 || baseDelayMillis < 0 || maxDelayMillis < baseDelayMillis) {
+            throw new IllegalArgumentException("Bad retry policy.");
+        }
+        lock.lock();
+        try {
+            this.maxAttempts = maxAttempts;
+            this.baseDelayNanos = TimeUnit.MILLISECONDS.toNanos(baseDelayMillis);
+            this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Makes the downloads set up by submit(host, page, file, priority) report
+     * their timings to metrics.
+     *
+     * @param metrics
+     */
+    public void setMetrics(FetchMetrics metrics) {
+        lock.lock();
+        try {
+            this.metrics = metrics;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queues a download of the page from the host into the file. Blocks
+     * while the scheduler already has maxPending downloads.
+     *
+     * @param host
+     * @param page
+     * @param file
+     * @param priority higher goes first
+     * @return a future that completes with the file, or with why it couldn't be downloaded
+     * @throws InterruptedException if interrupted while waiting for room
+     */
+    public Future<File> submit(String host, String page, File file, int priority) throws InterruptedException {
+        Fetch fetch = new Fetch(host, page, file);
+        fetch.setConnectionPool(pool);
+        lock.lock();
+        try {
+            fetch.setMetrics(metrics);
+        }
+        finally {
+            lock.unlock();
+        }
+        return submit(fetch, priority);
+    }
+
+    /**
+     * Queues an already set up Fetch. Blocks while the scheduler already has
+     * maxPending downloads.
+     *
+     * @param fetch
+     * @param priority higher goes first
+     * @return a future that completes with the file, or with why it couldn't be downloaded
+     * @throws InterruptedException if interrupted while waiting for room
+     */
+    public Future<File> submit(Fetch fetch, int priority) throws InterruptedException {
+        lock.lock();
+        try {
+            while (pending >= maxPending && !shutdown) notFull.await();
+            if (shutdown) throw new IllegalStateException("The scheduler has been shut down.");
+
+            Task task = new Task(fetch, priority, sequence++);
+            pending++;
+            HostState host = hosts.computeIfAbsent(fetch.getHost(), this::newHost);
+            boolean idle = host.queue.isEmpty();
+            host.queue.add(task);
+            if (idle || (host.where == READY && host.queue.peek() == task)) place(host, System.nanoTime());
+            changed.signal();
+            return task.result;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops taking new downloads. The ones already queued (and their
+     * retries) still run.
+     */
+    public void shutdown() {
+        lock.lock();
+        try {
+            shutdown = true;
+            changed.signal();
+            notFull.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for every download to finish after shutdown.
+     *
+     * @param timeout
+     * @param unit
+     * @return false if the time ran out first
+     * @throws InterruptedException
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        dispatcher.join(Math.max(1, unit.toMillis(timeout)));
+        if (dispatcher.isAlive()) return false;
+        return workers.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns how many downloads are waiting or running.
+     *
+     * @return
+     */
+    public int getPendingCount() {
+        lock.lock();
+        try {
+            return pending;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns how many downloads finished successfully.
+     *
+     * @return
+     */
+    public long getCompletedCount() {
+        lock.lock();
+        try {
+            return completed;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns how many downloads gave up.
+     *
+     * @return
+     */
+    public long getFailedCount() {
+        lock.lock();
+        try {
+            return failed;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns how many times a download was tried again.
+     *
+     * @return
+     */
+    public long getRetryCount() {
+        lock.lock();
+        try {
+            return retried;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    // the dispatcher thread: hands downloads to the workers as limits allow
+    private void dispatch() {
+        lock.lock();
+        try {
+            while (!(shutdown && pending == 0)) {
+                long now = System.nanoTime();
+                wakeDue(now);
+
+                long waitNanos = Long.MAX_VALUE;
+                if (inFlight < threads && !ready.isEmpty()) {
+                    if (global.tryTake(now)) {
+                        start(now);
+                        continue;
+                    }
+                    waitNanos = global.nanosUntilToken(now);
+                }
+                if (!waiting.isEmpty()) waitNanos = Math.min(waitNanos, waiting.peek().wakeAt - now);
+                if (!retries.isEmpty()) waitNanos = Math.min(waitNanos, retries.peek().dueAt - now);
+
+                if (now - lastSweep > SWEEP_INTERVAL_NANOS) sweep(now);
+                if (waitNanos == Long.MAX_VALUE) changed.await();
+                else if (waitNanos > 0) changed.awaitNanos(waitNanos);
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            lock.unlock();
+            workers.shutdown();
+        }
+    }
+
+    // moves hosts whose token came, and retries that are due, back in line
+    private void wakeDue(long now) {
+        while (!retries.isEmpty() && retries.peek().dueAt - now <= 0) {
+            Task task = retries.poll();
+            HostState host = hosts.computeIfAbsent(task.fetch.getHost(), this::newHost);
+            host.queue.add(task);
+            if (host.where != WAITING && host.where != BUSY) place(host, now);
+        }
+        while (!waiting.isEmpty() && waiting.peek().wakeAt - now <= 0) {
+            HostState host = waiting.poll();
+            host.where = IDLE;
+            place(host, now);
+        }
+    }
+
+    // takes the next host in turn at the highest priority and starts its best download
+    private void start(long now) {
+        Map.Entry<Integer, ArrayDeque<HostState>> level = ready.firstEntry();
+        HostState host = level.getValue().pollFirst();
+        if (level.getValue().isEmpty()) ready.remove(level.getKey());
+        host.where = IDLE;
+
+        Task task = host.queue.poll();
+        host.bucket.tryTake(now);
+        host.running++;
+        inFlight++;
+        task.attempts++;
+        place(host, now);  // behind the other hosts at its level, if it can go again
+
+        workers.execute(() -> {
+            Throwable failure = null;
+            try {
+                task.fetch.fetch();
+            }
+            catch (Throwable e) {
+                failure = e;
+            }
+            finished(host, task, failure);
+        });
+    }
+
+    // a worker is done with a download: complete it, or line it up to try again
+    private void finished(HostState host, Task task, Throwable failure) {
+        int status = failure == null ? task.fetch.getTiming().getStatus() : 0;
+        lock.lock();
+        try {
+            host.running--;
+            inFlight--;
+            long now = System.nanoTime();
+
+            boolean retryable = failure != null ? isTransient(failure) : isRetryStatus(status);
+            if (retryable && task.attempts < maxAttempts) {
+                if (status == 429 || status == 503) host.bucket.drain(now);
+                long ceiling = Math.min(maxDelayNanos, baseDelayNanos << Math.min(task.attempts - 1, 30));
+                task.dueAt = now + ThreadLocalRandom.current().nextLong(ceiling + 1);
+                retries.add(task);
+                retried++;
+            }
+            else {
+                if (failure != null) task.result.completeExceptionally(failure);
+                else if (retryable) {
+                    task.result.completeExceptionally(new IOException("The server answered " + status + " after "
+                            + task.attempts + " attempts."));
+                }
+                else task.result.complete(task.fetch.getFile());
+
+                if (task.result.isCompletedExceptionally()) failed++;
+                else completed++;
+                pending--;
+                notFull.signal();
+            }
+
+            if (host.where == BUSY) {
+                host.where = IDLE;
+                place(host, now);
+            }
+            changed.signal();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    // failures another try might not hit: refused, unreachable, timed out, or reset or closed early.
+    // Not bad responses, bad compressed data or failed file writes, which would just happen again.
+    private static boolean isTransient(Throwable failure) {
+        for (Throwable e = failure; e != null; e = e.getCause()) {
+            if (e instanceof UnknownHostException) return false;
+            if (e instanceof SocketException || e instanceof SocketTimeoutException || e instanceof EOFException) return true;
+        }
+        return false;
+    }
+
+    private static boolean isRetryStatus(int status) {
+        return status == 408 || status == 429 || status == 500 || status == 502 || status == 503 || status == 504;
+    }
+
+    // puts a host where it belongs: in line, waiting for a token, busy, or idle
+    private void place(HostState host, long now) {
+        if (host.where == READY) {
+            // its best download may have changed; take it out of its old line first
+            ArrayDeque<HostState> line = ready.get(host.linePriority);
+            line.remove(host);
+            if (line.isEmpty()) ready.remove(host.linePriority);
+        }
+        else if (host.where == WAITING) {
+            waiting.remove(host);
+        }
+
+        if (host.queue.isEmpty()) {
+            host.where = IDLE;
+        }
+        else if (host.running >= perHostLimit) {
+            host.where = BUSY;
+        }
+        else if (!host.bucket.hasToken(now)) {
+            host.where = WAITING;
+            host.wakeAt = now + host.bucket.nanosUntilToken(now);
+            waiting.add(host);
+        }
+        else {
+            host.where = READY;
+            host.linePriority = host.queue.peek().priority;
+            ready.computeIfAbsent(host.linePriority, p -> new ArrayDeque<>()).addLast(host);
+        }
+    }
+
+    // forgets hosts that have nothing to do, once forgetting them can't reset their rate limit
+    private void sweep(long now) {
+        lastSweep = now;
+        Iterator<HostState> it = hosts.values().iterator();
+        while (it.hasNext()) {
+            HostState host = it.next();
+            if (host.where == IDLE && host.running == 0 && host.queue.isEmpty() && host.bucket.isFull(now)) it.remove();
+        }
+    }
+
+    private HostState newHost(String host) {
+        double[] rate = hostRates.get(host);
+        return new HostState(rate != null ? new TokenBucket(rate[0], (int) rate[1]) : new TokenBucket(hostRate, 1));
+    }
+
+    private static final int IDLE = 0;
+    private static final int READY = 1;
+    private static final int WAITING = 2;
+    private static final int BUSY = 3;
+
+    private static class HostState {
+        // highest priority first, then in the order they were submitted
+        private final PriorityQueue<Task> queue = new PriorityQueue<>((a, b) ->
+                a.priority != b.priority ? Integer.compare(b.priority, a.priority) : Long.compare(a.sequence, b.sequence));
+        private TokenBucket bucket;
+        private int running = 0;
+        private int where = IDLE;
+        private int linePriority;  // which line of ready it's in
+        private long wakeAt;  // when it gets a token, while WAITING
+
+        private HostState(TokenBucket bucket) {
+            this.bucket = bucket;
+        }
+    }
+
+    private static class Task {
+        private final Fetch fetch;
+        private final int priority;
+        private final long sequence;
+        private final CompletableFuture<File> result = new CompletableFuture<>();
+        private int attempts = 0;
+        private long dueAt;  // when to try again, while waiting to retry
+
+        private Task(Fetch fetch, int priority, long sequence) {
+            this.fetch = fetch;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+    }
+
+    // rate tokens refill continuously up to burst; a rate of 0 means no limit
+    private static class TokenBucket {
+        private final double perNano;
+        private final double burst;
+        private double tokens;
+        private long last = System.nanoTime();
+
+        private TokenBucket(double perSecond, int burst) {
+            this.perNano = perSecond / 1e9;
+            this.burst = burst;
+            this.tokens = burst;
+        }
+
+        private void refill(long now) {
+            if (perNano == 0) return;
+            tokens = Math.min(burst, tokens + (now - last) * perNano);
+            last = now;
+        }
+
+        private boolean hasToken(long now) {
+            refill(now);
+            return perNano == 0 || tokens >= 1;
+        }
+
+        private boolean tryTake(long now) {
+            if (!hasToken(now)) return false;
+            if (perNano != 0) tokens -= 1;
+            return true;
+        }
+
+        private long nanosUntilToken(long now) {
+            refill(now);
+            if (perNano == 0 || tokens >= 1) return 0;
+            return (long) Math.ceil((1 - tokens) / perNano);
+        }
+
+        private void drain(long now) {
+            refill(now);
+            tokens = Math.min(tokens, 0);
+        }
+
+        private boolean isFull(long now) {
+            refill(now);
+            return perNano == 0 || tokens >= burst;
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/**
+ * Where the time of one request went. Each phase is measured from the end
+ * of the one before it:
+ *
+ *   DNS          looking up the host (nearly nothing once it's cached)
+ *   connect      opening the connection, or getting one from the pool
+ *   first byte   from the request being sent until the response starts
+ *   header       reading the rest of the status line and headers
+ *   body         reading the body and writing it to the file
+ *
+ * A phase that didn't happen (like connecting, for a pipelined request)
+ * counts as 0.
+ *
+ * @author Sumneet
+ */
+public class FetchTiming {
+
+    private final String host;
+    private final String page;
+    private final long start;
+    // System.nanoTime() at the end of each phase, 0 until it ends
+    private long dnsDone;
+    private long connected;
+    private long requestSent;
+    private long firstByte;
+    private long headerDone;
+    private long end;
+    private int status = 0;
+    private long bytes = 0;
+    private boolean succeeded = false;
+
+    FetchTiming(String host, String page) {
+        this.host = host;
+        this.page = page;
+        this.start = System.nanoTime();
+    }
+
+    void markDns() {
+        dnsDone = System.nanoTime();
+    }
+
+    void markConnected() {
+        connected = System.nanoTime();
+    }
+
+    void markRequestSent() {
+        requestSent = System.nanoTime();
+    }
+
+    void markFirstByte() {
+        if (firstByte == 0) firstByte = System.nanoTime();
+    }
+
+    void markHeaderDone(int status) {
+        headerDone = System.nanoTime();
+        this.status = status;
+    }
+
+    void finish(long bytes, boolean succeeded) {
+        end = System.nanoTime();
+        this.bytes = bytes;
+        this.succeeded = succeeded;
+    }
+
+    /**
+     * Returns the host the request went to.
+     *
+     * @return
+     */
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * Returns the page that was asked for.
+     *
+     * @return
+     */
+    public String getPage() {
+        return page;
+    }
+
+    /**
+     * Returns the response's status code, or 0 if no header was read.
+     *
+     * @return
+     */
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * Returns how many body bytes were written to the file.
+     *
+     * @return
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Returns true if the request finished without an exception.
+     *
+     * @return
+     */
+    public boolean isSucceeded() {
+        return succeeded;
+    }
+
+    /**
+     * Returns how long the host lookup took, in nanoseconds.
+     *
+     * @return
+     */
+    public long getDnsNanos() {
+        return phase(start, dnsDone);
+    }
+
+    /**
+     * Returns how long getting a connection took, in nanoseconds.
+     *
+     * @return
+     */
+    public long getConnectNanos() {
+        return phase(dnsDone, connected);
+    }
+
+    /**
+     * Returns how long the server took to start answering, in nanoseconds.
+     *
+     * @return
+     */
+    public long getFirstByteNanos() {
+        return phase(requestSent, firstByte);
+    }
+
+    /**
+     * Returns how long reading the header took, in nanoseconds.
+     *
+     * @return
+     */
+    public long getHeaderNanos() {
+        return phase(firstByte, headerDone);
+    }
+
+    /**
+     * Returns how long reading and writing the body took, in nanoseconds.
+     *
+     * @return
+     */
+    public long getBodyNanos() {
+        return phase(headerDone, end);
+    }
+
+    /**
+     * Returns the whole time from start to finish.
+     *
+     * @return
+     */
+    public long getTotalNanos() {
+        return phase(start, end);
+    }
+
+    /**
+     * Returns how fast the body came in, in bytes per second (0 if there was no body).
+     *
+     * @return
+     */
+    public double getThroughput() {
+        long nanos = getBodyNanos();
+        return nanos == 0 ? 0 : bytes * 1e9 / nanos;
+    }
+
+    /**
+     * Returns this timing as a JSON object, with times in microseconds.
+     *
+     * @return
+     */
+    public String toJson() {
+        return "{\"host\":" + FetchMetrics.quote(host)
+                + ",\"page\":" + FetchMetrics.quote(page)
+                + ",\"status\":" + status
+                + ",\"succeeded\":" + succeeded
+                + ",\"bytes\":" + bytes
+                + ",\"dnsMicros\":" + getDnsNanos() / 1000
+                + ",\"connectMicros\":" + getConnectNanos() / 1000
+                + ",\"firstByteMicros\":" + getFirstByteNanos() / 1000
+                + ",\"headerMicros\":" + getHeaderNanos() / 1000
+                + ",\"bodyMicros\":" + getBodyNanos() / 1000
+                + ",\"totalMicros\":" + getTotalNanos() / 1000
+                + ",\"bytesPerSecond\":" + (long) getThroughput()
+                + "}";
+    }
+
+    // the time between two marks, or 0 if either is missing
+    private static long phase(long from, long to) {
+        return from == 0 || to == 0 || to < from ? 0 : to - from;
+    }
+}
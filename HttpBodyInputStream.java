@@ -0,0 +1,137 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads exactly one response body off a connection, so the bytes after it
+ * are left for the next response. The body is framed one of three ways:
+ * a Content-Length, chunked transfer encoding (the chunk size lines and
+ * trailers are removed here), or, when there's neither, everything until
+ * the server closes the connection.
+ *
+ * Closing this stream does not close the connection underneath.
+ *
+ * @author Sumneet
+ */
+public class HttpBodyInputStream extends InputStream {
+
+    private static final int MAX_LINE = 8 * 1024;  // longest chunk size or trailer line we accept
+
+    private final InputStream in;
+    private final boolean chunked;
+    private final boolean untilClose;
+    private long remaining;  // bytes left in the body, or in the current chunk when chunked
+    private boolean done = false;
+    private final byte[] single = new byte[1];
+
+    /**
+     * Creates a body reader.
+     *
+     * @param in the connection's input, positioned right after the header
+     * @param contentLength the body length, or -1 if the response didn't give one
+     * @param chunked true if the response uses chunked transfer encoding (this wins over contentLength)
+     */
+    public HttpBodyInputStream(InputStream in, long contentLength, boolean chunked) {
+        this.in = in;
+        this.chunked = chunked;
+        this.untilClose = !chunked && contentLength < 0;
+        this.remaining = chunked ? 0 : contentLength;
+        if (!chunked && contentLength == 0) done = true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int n = read(single, 0, 1);
+        return n == -1 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (done) return -1;
+
+        if (untilClose) {
+            int n = in.read(b, off, len);
+            if (n == -1) done = true;
+            return n;
+        }
+
+        if (chunked && remaining == 0) {
+            remaining = readChunkSize();
+            if (remaining == 0) {
+                skipTrailers();
+                done = true;
+                return -1;
+            }
+        }
+
+        int n = in.read(b, off, (int) Math.min(len, remaining));
+        if (n == -1) throw new EOFException("The connection closed in the middle of the body.");
+        remaining -= n;
+
+        if (remaining == 0) {
+            if (chunked) readLine();  // the CRLF after the chunk's data
+            else done = true;
+        }
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        if (done || untilClose) return done ? 0 : in.available();
+        return (int) Math.min(in.available(), remaining);
+    }
+
+    /**
+     * Returns true once the whole body has been read and the connection is
+     * positioned at the start of the next response. A body that ran until
+     * the connection closed never counts, since there's no next response.
+     *
+     * @return
+     */
+    public boolean isComplete() {
+        return done && !untilClose;
+    }
+
+    /**
+     * Does nothing to the connection; whoever owns it decides whether to reuse it.
+     */
+    @Override
+    public void close() {
+    }
+
+    // "1a2b;extension=whatever" -> 0x1a2b
+    private long readChunkSize() throws IOException {
+        String line = readLine();
+        int end = line.indexOf(';');
+        if (end >= 0) line = line.substring(0, end);
+        line = line.trim();
+        try {
+            long size = Long.parseLong(line, 16);
+            if (size < 0) throw new NumberFormatException();
+            return size;
+        }
+        catch (NumberFormatException e) {
+            throw new IOException("Bad chunk size: " + line);
+        }
+    }
+
+    // trailers come after the last chunk, ending with an empty line
+    private void skipTrailers() throws IOException {
+        while (!readLine().isEmpty()) { }
+    }
+
+    // a CRLF (or bare LF) terminated ASCII line, without the line ending
+    private String readLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c == -1) throw new EOFException("The connection closed in the middle of the body.");
+            if (line.length() >= MAX_LINE) throw new IOException("Chunk line is too long.");
+            line.append((char) c);
+        }
+        int length = line.length();
+        if (length > 0 && line.charAt(length - 1) == '\r') line.setLength(length - 1);
+        return line.toString();
+    }
+}
@@ -0,0 +1,191 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * One open TCP connection to an HTTP server, with buffered streams on top
+ * of the socket. The input buffer is shared by every response read from the
+ * connection, so bytes of the next response that arrive early aren't lost
+ * between requests.
+ *
+ * @author Sumneet
+ */
+public class HttpConnection implements Closeable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Socket socket;
+    private final InputStream input;
+    private final OutputStream output;
+    private final String hostName;
+    private final int port;
+    private long lastUsed = System.nanoTime();
+    private int requestCount = 0;
+
+    /**
+     * Wraps an already connected socket.
+     *
+     * @param socket
+     * @param hostName
+     * @param port
+     * @throws IOException
+     */
+    public HttpConnection(Socket socket, String hostName, int port) throws IOException {
+        this.socket = socket;
+        this.hostName = hostName;
+        this.port = port;
+        this.input = new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE);
+        this.output = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+    }
+
+    /**
+     * Opens a new connection to the host with the shared Connector.
+     *
+     * @param hostName
+     * @param port
+     * @return
+     * @throws IOException
+     */
+    public static HttpConnection open(String hostName, int port) throws IOException {
+        return open(Connector.getShared(), hostName, port);
+    }
+
+    /**
+     * Opens a new connection to the host with the given Connector (which
+     * decides the timeouts and where the addresses come from).
+     *
+     * @param connector
+     * @param hostName
+     * @param port
+     * @return
+     * @throws IOException
+     */
+    public static HttpConnection open(Connector connector, String hostName, int port) throws IOException {
+        Socket socket = connector.connect(hostName, port);
+        try {
+            socket.setTcpNoDelay(true);  // requests are small and we flush them ourselves
+            return new HttpConnection(socket, hostName, port);
+        }
+        catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Writes a request and flushes it. Counts as a use of the connection.
+     *
+     * @param request
+     * @throws IOException
+     */
+    public void send(byte[] request) throws IOException {
+        write(request);
+        output.flush();
+    }
+
+    /**
+     * Writes a request without flushing, for sending several at once.
+     *
+     * @param request
+     * @throws IOException
+     */
+    public void write(byte[] request) throws IOException {
+        output.write(request);
+        requestCount++;
+        lastUsed = System.nanoTime();
+    }
+
+    /**
+     * Sends anything written but not flushed yet.
+     *
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        output.flush();
+    }
+
+    /**
+     * Returns the buffered input of the connection. Every response on this
+     * connection has to be read through it.
+     *
+     * @return
+     */
+    public InputStream getInput() {
+        return input;
+    }
+
+    /**
+     * Returns the socket underneath.
+     *
+     * @return
+     */
+    public Socket getSocket() {
+        return socket;
+    }
+
+    /**
+     * Returns the host this connection goes to.
+     *
+     * @return
+     */
+    public String getHostName() {
+        return hostName;
+    }
+
+    /**
+     * Returns the port this connection goes to.
+     *
+     * @return
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Returns how many requests have been sent on this connection.
+     *
+     * @return
+     */
+    public int getRequestCount() {
+        return requestCount;
+    }
+
+    /**
+     * Returns System.nanoTime() of the last request or release.
+     *
+     * @return
+     */
+    public long getLastUsed() {
+        return lastUsed;
+    }
+
+    /**
+     * Marks the connection as used now (the pool calls this when it gets a
+     * connection back).
+     */
+    public void touch() {
+        lastUsed = System.nanoTime();
+    }
+
+    /**
+     * Returns true once the connection has been closed on our side.
+     *
+     * @return
+     */
+    public boolean isClosed() {
+        return socket.isClosed();
+    }
+
+    /**
+     * Closes the connection.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        socket.close();
+    }
+}
@@ -0,0 +1,337 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Parses the status line and headers of an HTTP response as its bytes
+ * arrive. Bytes can be fed in pieces of any size, split anywhere - in the
+ * middle of a line, or in the middle of the CRLF CRLF that ends the header -
+ * and the parser picks up where it left off. It stops at the end of the
+ * header, so whatever comes after it in the last piece is the start of the
+ * body.
+ *
+ * Lines are collected as bytes and only turned into Strings once each
+ * line is complete. Interim 1xx responses (like 100 Continue) are skipped.
+ *
+ * @author Sumneet
+ */
+public class HttpResponseParser {
+
+    public static final int DEFAULT_MAX_HEADER_SIZE = 64 * 1024;
+
+    private static final int STATUS_LINE = 0;
+    private static final int HEADER_LINE = 1;
+    private static final int DONE = 2;
+
+    private final int maxHeaderSize;
+    private int state = STATUS_LINE;
+    private int headerSize = 0;  // bytes of this header seen so far
+    private byte[] line = new byte[128];  // the line being read, without its line ending
+    private int lineLength = 0;
+
+    private String version;
+    private int status;
+    private String reason;
+    private final Map<String, String> headers = new HashMap<>();  // names in lower case
+    private String lastName = null;  // for header values continued on the next line
+
+    /**
+     * Creates a parser that accepts headers up to the default size.
+     */
+    public HttpResponseParser() {
+        this(DEFAULT_MAX_HEADER_SIZE);
+    }
+
+    /**
+     * Creates a parser that gives up on headers longer than maxHeaderSize bytes.
+     *
+     * @param maxHeaderSize
+     */
+    public HttpResponseParser(int maxHeaderSize) {
+        if (maxHeaderSize < 1) throw new IllegalArgumentException("Max header size must be positive.");
+        this.maxHeaderSize = maxHeaderSize;
+    }
+
+    /**
+     * Parses bytes from the array until the header is complete or the bytes run out.
+     *
+     * @param b
+     * @param off
+     * @param len
+     * @return how many bytes were used; the rest (if any) belong to the body
+     * @throws IOException if the header is malformed or too long
+     */
+    public int feed(byte[] b, int off, int len) throws IOException {
+        int i = off;
+        int end = off + len;
+        while (i < end && state != DONE) {
+            accept(b[i++]);
+        }
+        return i - off;
+    }
+
+    /**
+     * Parses bytes from the buffer until the header is complete or the buffer is
+     * empty. The buffer's position is left right after the last byte used.
+     *
+     * @param buffer
+     * @return true once the header is complete
+     * @throws IOException if the header is malformed or too long
+     */
+    public boolean feed(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining() && state != DONE) {
+            accept(buffer.get());
+        }
+        return state == DONE;
+    }
+
+    /**
+     * Reads the header off the stream, one byte at a time so nothing after it
+     * is taken from the stream. Use a buffered stream.
+     *
+     * @param in
+     * @throws IOException if the stream ends first, or the header is malformed or too long
+     */
+    public void read(InputStream in) throws IOException {
+        while (state != DONE) {
+            int c = in.read();
+            if (c == -1) throw new EOFException("The connection closed in the middle of the header.");
+            accept((byte) c);
+        }
+    }
+
+    /**
+     * Returns true once the empty line ending the header has been parsed.
+     *
+     * @return
+     */
+    public boolean isComplete() {
+        return state == DONE;
+    }
+
+    /**
+     * Forgets everything so the parser can be used for the next response.
+     */
+    public void reset() {
+        state = STATUS_LINE;
+        headerSize = 0;
+        lineLength = 0;
+        version = null;
+        status = 0;
+        reason = null;
+        headers.clear();
+        lastName = null;
+    }
+
+    /**
+     * Returns the HTTP version from the status line, like "HTTP/1.1".
+     *
+     * @return
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns the status code.
+     *
+     * @return
+     */
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * Returns the reason phrase from the status line (can be empty).
+     *
+     * @return
+     */
+    public String getReason() {
+        return reason;
+    }
+
+    /**
+     * Returns the value of a header, or null if the response doesn't have it.
+     * Names aren't case sensitive, and a header that appears more than once
+     * has its values joined with ", ".
+     *
+     * @param name
+     * @return
+     */
+    public String getHeader(String name) {
+        return headers.get(name.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Returns every header, with the names in lower case.
+     *
+     * @return
+     */
+    public Map<String, String> getHeaders() {
+        return Collections.unmodifiableMap(headers);
+    }
+
+    /**
+     * Returns the Content-Length, or -1 if the response doesn't have one.
+     *
+     * @return
+     * @throws IOException if it isn't a number, or there are several that disagree
+     */
+    public long getContentLength() throws IOException {
+        String value = headers.get("content-length");
+        if (value == null) return -1;
+
+        long length = -1;
+        for (String part : value.split(",")) {
+            long one;
+            try {
+                one = Long.parseLong(part.trim());
+            }
+            catch (NumberFormatException e) {
+                throw new IOException("Bad Content-Length: " + value);
+            }
+            if (one < 0 || (length != -1 && one != length)) throw new IOException("Bad Content-Length: " + value);
+            length = one;
+        }
+        return length;
+    }
+
+    /**
+     * Returns the Transfer-Encoding header in lower case, or null.
+     *
+     * @return
+     */
+    public String getTransferEncoding() {
+        String value = headers.get("transfer-encoding");
+        return value == null ? null : value.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Returns the Content-Encoding header in lower case, or null.
+     *
+     * @return
+     */
+    public String getContentEncoding() {
+        String value = headers.get("content-encoding");
+        return value == null ? null : value.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Returns true if the body uses chunked transfer encoding (it has to be
+     * the last transfer coding).
+     *
+     * @return
+     */
+    public boolean isChunked() {
+        String encoding = getTransferEncoding();
+        if (encoding == null) return false;
+        int comma = encoding.lastIndexOf(',');
+        return encoding.substring(comma + 1).trim().equals("chunked");
+    }
+
+    /**
+     * Returns how long the body is: 0 for responses that never have one
+     * (1xx, 204, 304), the Content-Length if there is one, otherwise -1,
+     * meaning the body runs until the connection closes. Doesn't apply to
+     * chunked bodies.
+     *
+     * @return
+     * @throws IOException if the Content-Length is bad
+     */
+    public long getBodyLength() throws IOException {
+        if (status / 100 == 1 || status == 204 || status == 304) return 0;
+        return getContentLength();
+    }
+
+    /**
+     * Returns true if the server will keep the connection open after this response.
+     *
+     * @return
+     */
+    public boolean isKeepAlive() {
+        String connection = headers.get("connection");
+        connection = connection == null ? "" : connection.toLowerCase(Locale.ROOT);
+        if ("HTTP/1.0".equals(version)) return connection.contains("keep-alive");
+        return !connection.contains("close");
+    }
+
+    // one byte of the header
+    private void accept(byte c) throws IOException {
+        if (++headerSize > maxHeaderSize) throw new IOException("Header is too long.");
+
+        if (c != '\n') {
+            if (lineLength == line.length) {
+                byte[] bigger = new byte[Math.min(line.length * 2, maxHeaderSize)];
+                System.arraycopy(line, 0, bigger, 0, lineLength);
+                line = bigger;
+            }
+            line[lineLength++] = c;
+            return;
+        }
+
+        if (lineLength > 0 && line[lineLength - 1] == '\r') lineLength--;
+        if (state == STATUS_LINE) statusLine();
+        else if (lineLength == 0) endOfHeader();
+        else headerLine();
+        lineLength = 0;
+    }
+
+    // "HTTP/1.1 200 OK"
+    private void statusLine() throws IOException {
+        if (lineLength == 0) return;  // some servers send a stray CRLF before the status line
+
+        String text = new String(line, 0, lineLength, StandardCharsets.ISO_8859_1);
+        int firstSpace = text.indexOf(' ');
+        if (firstSpace < 0 || !text.startsWith("HTTP/")) throw new IOException("Bad status line: " + text);
+        int secondSpace = text.indexOf(' ', firstSpace + 1);
+        String code = secondSpace < 0 ? text.substring(firstSpace + 1) : text.substring(firstSpace + 1, secondSpace);
+        if (code.length() != 3) throw new IOException("Bad status line: " + text);
+        try {
+            status = Integer.parseInt(code);
+        }
+        catch (NumberFormatException e) {
+            throw new IOException("Bad status line: " + text);
+        }
+        version = text.substring(0, firstSpace);
+        reason = secondSpace < 0 ? "" : text.substring(secondSpace + 1);
+        state = HEADER_LINE;
+    }
+
+    // "Name: value", or a continuation of the last value if it starts with a space or tab
+    private void headerLine() throws IOException {
+        if (line[0] == ' ' || line[0] == '\t') {
+            if (lastName == null) throw new IOException("Bad header line: " + new String(line, 0, lineLength, StandardCharsets.ISO_8859_1));
+            String more = new String(line, 0, lineLength, StandardCharsets.ISO_8859_1).trim();
+            headers.merge(lastName, more, (a, b) -> a + " " + b);
+            return;
+        }
+
+        int colon = 0;
+        while (colon < lineLength && line[colon] != ':') colon++;
+        if (colon == 0 || colon == lineLength) {
+            throw new IOException("Bad header line: " + new String(line, 0, lineLength, StandardCharsets.ISO_8859_1));
+        }
+        String name = new String(line, 0, colon, StandardCharsets.ISO_8859_1).trim().toLowerCase(Locale.ROOT);
+        String value = new String(line, colon + 1, lineLength - colon - 1, StandardCharsets.ISO_8859_1).trim();
+        headers.merge(name, value, (a, b) -> a + ", " + b);
+        lastName = name;
+    }
+
+    private void endOfHeader() {
+        if (status / 100 == 1 && status != 101) {
+            // an interim response - the real one follows it
+            headers.clear();
+            lastName = null;
+            headerSize = 0;
+            state = STATUS_LINE;
+            return;
+        }
+        state = DONE;
+    }
+}
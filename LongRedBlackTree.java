@@ -0,0 +1,439 @@
+import java.util.Arrays;
+
+/**
+ * LongRedBlackTree
+ *
+ * RedBlackTree specialized for long keys. Instead of a Node object per key
+ * the nodes live in parallel arrays and point at each other by index, so a
+ * key costs 8 bytes in a long[] instead of a boxed Long, there's no object
+ * header per node, and comparisons are plain long comparisons instead of
+ * compareTo calls. The colors are packed one bit per node into a long[].
+ *
+ * Deleted slots go on a free list and get reused by later puts, so a tree
+ * with steady churn doesn't keep allocating. The arrays double when they
+ * fill up.
+ *
+ * Methods that return a key take a notFound value to return when there's
+ * no such key, since there's no null for a long.
+ *
+ * @author Sumneet Brar
+ */
+public class LongRedBlackTree<V> {
+
+  private static final int NIL = -1; // the "null" child link
+  private static final int DEFAULT_CAPACITY = 16;
+
+  // node i is keys[i], values[i], left[i], right[i], subtreeSize[i] and bit i of red
+  private long[] keys;
+  private Object[] values;
+  private int[] left;
+  private int[] right;
+  private int[] subtreeSize;
+  private long[] red;
+
+  private int root = NIL;
+  private int used = 0; // slots that have ever been handed out
+  private int free = NIL; // first slot of the free list, chained through left
+
+  /**
+   * This constructor creates an empty tree with room for 16 keys before the
+   * arrays grow.
+   */
+  public LongRedBlackTree() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  /**
+   * This constructor creates an empty tree with room for the given number of
+   * keys before the arrays grow.
+   *
+   * @param initialCapacity
+   */
+  public LongRedBlackTree(int initialCapacity) {
+    if (initialCapacity < 1)
+      throw new IllegalArgumentException("Initial capacity must be positive.");
+    keys = new long[initialCapacity];
+    values = new Object[initialCapacity];
+    left = new int[initialCapacity];
+    right = new int[initialCapacity];
+    subtreeSize = new int[initialCapacity];
+    red = new long[(initialCapacity + 63) >>> 6];
+  }
+
+  /**
+   * This method inserts a new key value pair into the tree, or replaces the
+   * value if the key is already there.
+   *
+   * @param key given key to add
+   * @param value given value to add
+   */
+  public void put(long key, V value) {
+    root = insert(root, key, value);
+    setRed(root, false); // make sure the root is black
+  }
+
+  private int insert(int top, long key, V value) {
+    if (top == NIL) return newNode(key, value);
+
+    // the child goes through a local first: insert can grow the arrays, and
+    // left[top] = insert(...) would store into the array from before the grow
+    int child;
+    if (key < keys[top]) {
+      child = insert(left[top], key, value);
+      left[top] = child;
+    }
+    else if (key > keys[top]) {
+      child = insert(right[top], key, value);
+      right[top] = child;
+    }
+    else {
+      values[top] = value;
+      return top; // nothing below changed shape
+    }
+    return balance(top);
+  }
+
+  /**
+   * Returns the corresponding value to the given key or null if key
+   * is not present.
+   *
+   * @param key
+   * @return
+   */
+  @SuppressWarnings("unchecked")
+  public V get(long key) {
+    int node = find(key);
+    if (node == NIL) return null;
+    return (V) values[node];
+  }
+
+  /**
+   * Returns true if the key is present.
+   *
+   * @param key
+   * @return
+   */
+  public boolean containsKey(long key) {
+    return find(key) != NIL;
+  }
+
+  /**
+   * Removes a key-value pair, returning the deleted value.
+   * Returns null if the key wasn’t present.
+   *
+   * @param key
+   * @return
+   */
+  @SuppressWarnings("unchecked")
+  public V delete(long key) {
+    int node = find(key);
+    if (node == NIL) return null;
+    V value = (V) values[node]; // the slot may get the successor's value below
+
+    // make the root red if both children are black, so there's redness to carry down
+    if (!isRed(left[root]) && !isRed(right[root])) setRed(root, true);
+    root = delete(root, key);
+    if (root != NIL) setRed(root, false);
+    return value;
+  }
+
+  // Sedgewick's top-down delete; the key is known to be present
+  private int delete(int top, long key) {
+    if (key < keys[top]) {
+      if (!isRed(left[top]) && !isRed(left[left[top]])) top = moveRedLeft(top);
+      left[top] = delete(left[top], key);
+    }
+    else {
+      if (isRed(left[top])) top = rotateRight(top);
+      if (key == keys[top] && right[top] == NIL) {
+        release(top);
+        return NIL;
+      }
+      if (!isRed(right[top]) && !isRed(left[right[top]])) top = moveRedRight(top);
+      if (key == keys[top]) {
+        // take the successor's key and value, then delete the successor
+        int min = right[top];
+        while (left[min] != NIL) min = left[min];
+        keys[top] = keys[min];
+        values[top] = values[min];
+        right[top] = deleteMin(right[top]);
+      }
+      else right[top] = delete(right[top], key);
+    }
+    return balance(top);
+  }
+
+  private int deleteMin(int top) {
+    if (left[top] == NIL) {
+      release(top);
+      return NIL;
+    }
+    if (!isRed(left[top]) && !isRed(left[left[top]])) top = moveRedLeft(top);
+    left[top] = deleteMin(left[top]);
+    return balance(top);
+  }
+
+  /**
+   * Returns true if the tree is empty.
+   *
+   * @return
+   */
+  public boolean isEmpty() {
+    return root == NIL;
+  }
+
+  /**
+   * Returns n, the number of key-value pairs in the tree.
+   *
+   * @return
+   */
+  public int size() {
+    return size(root);
+  }
+
+  /**
+   * Returns the key that is less than all the others.
+   * Or notFound if the tree is empty.
+   *
+   * @param notFound
+   * @return
+   */
+  public long findFirstKey(long notFound) {
+    if (root == NIL) return notFound;
+    int node = root;
+    while (left[node] != NIL) node = left[node];
+    return keys[node];
+  }
+
+  /**
+   * Returns the key that is greater than all the others.
+   * Or notFound if the tree is empty.
+   *
+   * @param notFound
+   * @return
+   */
+  public long findLastKey(long notFound) {
+    if (root == NIL) return notFound;
+    int node = root;
+    while (right[node] != NIL) node = right[node];
+    return keys[node];
+  }
+
+  /**
+   * Returns the predecessor of the given key, or notFound
+   * if the key is not present or has no predecessor.
+   *
+   * @param key
+   * @param notFound
+   * @return
+   */
+  public long findPredecessor(long key, long notFound) {
+    int node = root;
+    int lastRightTurn = NIL; // the closest ancestor smaller than the key
+    while (node != NIL && keys[node] != key) {
+      if (key < keys[node]) node = left[node];
+      else {
+        lastRightTurn = node;
+        node = right[node];
+      }
+    }
+    if (node == NIL) return notFound; // the key doesn't exist
+
+    if (left[node] != NIL) {
+      node = left[node];
+      while (right[node] != NIL) node = right[node];
+      return keys[node];
+    }
+    return lastRightTurn == NIL ? notFound : keys[lastRightTurn];
+  }
+
+  /**
+   * Returns the successor of the given key, or notFound
+   * if the key is not present or has no successor.
+   *
+   * @param key
+   * @param notFound
+   * @return
+   */
+  public long findSuccessor(long key, long notFound) {
+    int node = root;
+    int lastLeftTurn = NIL; // the closest ancestor bigger than the key
+    while (node != NIL && keys[node] != key) {
+      if (key < keys[node]) {
+        lastLeftTurn = node;
+        node = left[node];
+      }
+      else node = right[node];
+    }
+    if (node == NIL) return notFound; // the key doesn't exist
+
+    if (right[node] != NIL) {
+      node = right[node];
+      while (left[node] != NIL) node = left[node];
+      return keys[node];
+    }
+    return lastLeftTurn == NIL ? notFound : keys[lastLeftTurn];
+  }
+
+  /**
+   * Returns the rank of the given key, or -1 if the key is
+   * not present.
+   *
+   * @param key
+   * @return
+   */
+  public int findRank(long key) {
+    int node = root;
+    int rank = 0;
+    while (node != NIL) {
+      if (key < keys[node]) node = left[node];
+      else if (key > keys[node]) {
+        rank += size(left[node]) + 1;
+        node = right[node];
+      }
+      else return rank + size(left[node]);
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the key with the given rank. Throws an IllegalArgumentException
+   * when the rank is invalid.
+   *
+   * @param rank
+   * @return
+   */
+  public long select(int rank) {
+    if (rank < 0 || rank >= size()) {
+      throw new IllegalArgumentException("Rank is out of bounds!");
+    }
+    int node = root;
+    while (true) {
+      int leftSize = size(left[node]);
+      if (rank < leftSize) node = left[node];
+      else if (rank == leftSize) return keys[node];
+      else {
+        rank -= leftSize + 1;
+        node = right[node];
+      }
+    }
+  }
+
+  private int find(long key) {
+    int node = root;
+    while (node != NIL) {
+      if (key < keys[node]) node = left[node];
+      else if (key > keys[node]) node = right[node];
+      else return node;
+    }
+    return NIL;
+  }
+
+  // takes a slot off the free list, or a fresh one, growing the arrays if needed
+  private int newNode(long key, V value) {
+    int node;
+    if (free != NIL) {
+      node = free;
+      free = left[node];
+    }
+    else {
+      if (used == keys.length) grow();
+      node = used++;
+    }
+    keys[node] = key;
+    values[node] = value;
+    left[node] = NIL;
+    right[node] = NIL;
+    subtreeSize[node] = 1;
+    setRed(node, true);
+    return node;
+  }
+
+  private void release(int node) {
+    values[node] = null; // don't hold on to the value
+    left[node] = free;
+    free = node;
+  }
+
+  private void grow() {
+    int capacity = keys.length * 2;
+    if (capacity < 0) throw new IllegalArgumentException("Tree is too big!");
+    keys = Arrays.copyOf(keys, capacity);
+    values = Arrays.copyOf(values, capacity);
+    left = Arrays.copyOf(left, capacity);
+    right = Arrays.copyOf(right, capacity);
+    subtreeSize = Arrays.copyOf(subtreeSize, capacity);
+    red = Arrays.copyOf(red, (capacity + 63) >>> 6);
+  }
+
+  private int size(int node) {
+    if (node == NIL) return 0;
+    return subtreeSize[node];
+  }
+
+  private boolean isRed(int node) {
+    return node != NIL && (red[node >>> 6] & (1L << node)) != 0;
+  }
+
+  private void setRed(int node, boolean isRed) {
+    if (isRed) red[node >>> 6] |= 1L << node;
+    else red[node >>> 6] &= ~(1L << node);
+  }
+
+  // the same fixes RedBlackTree runs on the way up, plus the size update
+  private int balance(int top) {
+    if (isRed(right[top]) && !isRed(left[top])) top = rotateLeft(top);
+    if (isRed(left[top]) && isRed(left[left[top]])) top = rotateRight(top);
+    if (isRed(left[top]) && isRed(right[top])) colorFlip(top);
+    subtreeSize[top] = size(left[top]) + size(right[top]) + 1;
+    return top;
+  }
+
+  private int moveRedLeft(int top) {
+    colorFlip(top);
+    if (isRed(left[right[top]])) {
+      right[top] = rotateRight(right[top]);
+      top = rotateLeft(top);
+      colorFlip(top);
+    }
+    return top;
+  }
+
+  private int moveRedRight(int top) {
+    colorFlip(top);
+    if (isRed(left[left[top]])) {
+      top = rotateRight(top);
+      colorFlip(top);
+    }
+    return top;
+  }
+
+  private int rotateLeft(int oldRoot) {
+    int newRoot = right[oldRoot];
+    right[oldRoot] = left[newRoot];
+    left[newRoot] = oldRoot;
+    setRed(newRoot, isRed(oldRoot));
+    setRed(oldRoot, true);
+    subtreeSize[newRoot] = subtreeSize[oldRoot];
+    subtreeSize[oldRoot] = size(left[oldRoot]) + size(right[oldRoot]) + 1;
+    return newRoot;
+  }
+
+  private int rotateRight(int oldRoot) {
+    int newRoot = left[oldRoot];
+    left[oldRoot] = right[newRoot];
+    right[newRoot] = oldRoot;
+    setRed(newRoot, isRed(oldRoot));
+    setRed(oldRoot, true);
+    subtreeSize[newRoot] = subtreeSize[oldRoot];
+    subtreeSize[oldRoot] = size(left[oldRoot]) + size(right[oldRoot]) + 1;
+    return newRoot;
+  }
+
+  // give the node and its children the opposite of their original colors
+  private void colorFlip(int parent) {
+    red[parent >>> 6] ^= 1L << parent;
+    red[left[parent] >>> 6] ^= 1L << left[parent];
+    red[right[parent] >>> 6] ^= 1L << right[parent];
+  }
+}
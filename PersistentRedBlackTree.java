@@ -0,0 +1,465 @@
+/**
+ * PersistentRedBlackTree
+ *
+ * An immutable, versioned red black tree. put and delete don't change the
+ * tree they're called on - they return a new version that shares every node
+ * off the changed path with the old one, so an update makes O(log n) new
+ * nodes and holding on to an old version (a snapshot) costs nothing extra.
+ * Every version keeps its own subtree sizes, so findRank and select work on
+ * any version in O(log n).
+ *
+ * Each version carries a version number, one more than the version it was
+ * made from.
+ *
+ * Keys and values cannot be null.
+ *
+ * @author Sumneet Brar
+ */
+public class PersistentRedBlackTree<K extends Comparable<K>, V> {
+
+  private final Node<K, V> root;
+  private final long version;
+
+  /**
+   * Creates an empty tree, version 0.
+   */
+  public PersistentRedBlackTree() {
+    this(null, 0);
+  }
+
+  private PersistentRedBlackTree(Node<K, V> root, long version) {
+    this.root = root;
+    this.version = version;
+  }
+
+  /**
+   * Returns the version number of this tree.
+   *
+   * @return
+   */
+  public long version() {
+    return version;
+  }
+
+  /**
+   * Returns a new version with the key value pair added (or the value
+   * replaced). This version doesn't change.
+   *
+   * @param key
+   * @param value
+   * @return the new version
+   */
+  public PersistentRedBlackTree<K, V> put(K key, V value) {
+    Editor<K, V> editor = edit();
+    editor.put(key, value);
+    return editor.commit();
+  }
+
+  /**
+   * Returns a new version without the key, or this version if the key
+   * wasn't present.
+   *
+   * @param key
+   * @return the new version
+   */
+  public PersistentRedBlackTree<K, V> delete(K key) {
+    if (!containsKey(key)) return this;
+    Editor<K, V> editor = edit();
+    editor.delete(key);
+    return editor.commit();
+  }
+
+  /**
+   * Starts a batch of changes on top of this version. Nodes the batch has
+   * already copied are changed in place instead of being copied again, so a
+   * batch of k writes can cost a lot less than k separate puts. Nothing is
+   * visible until commit, and this version never changes.
+   *
+   * @return
+   */
+  public Editor<K, V> edit() {
+    return new Editor<>(root, version);
+  }
+
+  /**
+   * Returns the corresponding value to the given key or null if key
+   * is not present.
+   *
+   * @param key
+   * @return
+   */
+  public V get(K key) {
+    return find(root, key);
+  }
+
+  /**
+   * Returns true if the key is present.
+   *
+   * @param key
+   * @return
+   */
+  public boolean containsKey(K key) {
+    return get(key) != null;
+  }
+
+  /**
+   * Returns n, the number of key-value pairs in the tree.
+   *
+   * @return
+   */
+  public int size() {
+    return size(root);
+  }
+
+  /**
+   * Returns true if the tree is empty.
+   *
+   * @return
+   */
+  public boolean isEmpty() {
+    return root == null;
+  }
+
+  /**
+   * Returns the rank of the given key, or -1 if the key is
+   * not present.
+   *
+   * @param key
+   * @return
+   */
+  public int findRank(K key) {
+    Node<K, V> currentNode = root;
+    int rank = 0;
+    while (currentNode != null) {
+      int compare = key.compareTo(currentNode.key);
+      if (compare < 0) currentNode = currentNode.left;
+      else if (compare > 0) {
+        rank += size(currentNode.left) + 1;
+        currentNode = currentNode.right;
+      }
+      else return rank + size(currentNode.left);
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the key with the given rank. Throws an IllegalArgumentException
+   * when the rank is invalid.
+   *
+   * @param rank
+   * @return
+   */
+  public K select(int rank) {
+    if (rank < 0 || rank >= size()) {
+      throw new IllegalArgumentException("Rank is out of bounds!");
+    }
+    Node<K, V> node = root;
+    while (node != null) {
+      int leftSize = size(node.left);
+      if (rank < leftSize) node = node.left;
+      else if (rank == leftSize) return node.key;
+      else {
+        rank -= leftSize + 1;
+        node = node.right;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns the key that is less than all the others.
+   * Or null if none.
+   *
+   * @return
+   */
+  public K findFirstKey() {
+    Node<K, V> node = root;
+    if (node == null) return null;
+    while (node.left != null) node = node.left;
+    return node.key;
+  }
+
+  /**
+   * Returns the key that is greater than all the others.
+   * Or null if none.
+   *
+   * @return
+   */
+  public K findLastKey() {
+    Node<K, V> node = root;
+    if (node == null) return null;
+    while (node.right != null) node = node.right;
+    return node.key;
+  }
+
+  /**
+   * Returns the predecessor of the given key, or null
+   * if the key is not present or has no predecessor.
+   *
+   * @param key
+   * @return
+   */
+  public K findPredecessor(K key) {
+    int rank = findRank(key);
+    if (rank <= 0) return null;
+    return select(rank - 1);
+  }
+
+  /**
+   * Returns the successor of the given key, or null
+   * if the key is not present or has no successor.
+   *
+   * @param key
+   * @return
+   */
+  public K findSuccessor(K key) {
+    int rank = findRank(key);
+    if (rank < 0 || rank + 1 >= size()) return null;
+    return select(rank + 1);
+  }
+
+  private static <K extends Comparable<K>, V> V find(Node<K, V> currentNode, K key) {
+    while (currentNode != null) {
+      int compare = key.compareTo(currentNode.key);
+      if (compare < 0) currentNode = currentNode.left;
+      else if (compare > 0) currentNode = currentNode.right;
+      else return currentNode.value;
+    }
+    return null;
+  }
+
+  private static int size(Node<?, ?> node) {
+    if (node == null) return 0;
+    else return node.subtreeSize;
+  }
+
+  private static boolean isRed(Node<?, ?> node) {
+    return node != null && node.isRed;
+  }
+
+  /**
+   * A batch of changes on top of one version. Every node the batch touches
+   * is copied once and tagged with the batch's edit token; after that the
+   * copy is changed in place. commit() ends the batch and returns the new
+   * version, after which the editor can't be used any more.
+   */
+  public static class Editor<K extends Comparable<K>, V> {
+    private Node<K, V> root;
+    private final long baseVersion;
+    private Object edit = new Object(); // nodes created or copied by this batch
+
+    private Editor(Node<K, V> root, long baseVersion) {
+      this.root = root;
+      this.baseVersion = baseVersion;
+    }
+
+    /**
+     * Adds the key value pair, returning the value it replaced (or null).
+     *
+     * @param key
+     * @param value
+     * @return
+     */
+    public V put(K key, V value) {
+      if (key == null || value == null)
+        throw new IllegalArgumentException("Key and value cannot be null.");
+      checkOpen();
+
+      Result<V> result = new Result<>();
+      root = insert(root, key, value, result);
+      root.isRed = false;
+      return result.value;
+    }
+
+    /**
+     * Removes the key, returning its value, or null if it wasn't present.
+     *
+     * @param key
+     * @return
+     */
+    public V delete(K key) {
+      if (key == null)
+        throw new IllegalArgumentException("Key cannot be null.");
+      checkOpen();
+
+      if (find(root, key) == null) return null; // not here - don't copy anything
+
+      // make the root red if both children are black, so there's redness to carry down
+      if (!isRed(root.left) && !isRed(root.right)) {
+        root = own(root);
+        root.isRed = true;
+      }
+      Result<V> result = new Result<>();
+      root = delete(root, key, result);
+      if (root != null) root.isRed = false;
+      return result.value;
+    }
+
+    /**
+     * Ends the batch and returns the new version.
+     *
+     * @return
+     */
+    public PersistentRedBlackTree<K, V> commit() {
+      checkOpen();
+      edit = null; // published nodes must never change again
+      return new PersistentRedBlackTree<>(root, baseVersion + 1);
+    }
+
+    private void checkOpen() {
+      if (edit == null) throw new IllegalStateException("This batch was already committed!");
+    }
+
+    // the node itself if this batch already owns it, otherwise a copy that it does own
+    private Node<K, V> own(Node<K, V> node) {
+      if (node.edit == edit) return node;
+      return new Node<>(node, edit);
+    }
+
+    private Node<K, V> insert(Node<K, V> top, K key, V value, Result<V> result) {
+      if (top == null) return new Node<>(key, value, true, edit);
+
+      top = own(top);
+      int compare = key.compareTo(top.key);
+      if (compare < 0) top.left = insert(top.left, key, value, result);
+      else if (compare > 0) top.right = insert(top.right, key, value, result);
+      else {
+        result.value = top.value;
+        top.value = value;
+        return top; // nothing below changed shape
+      }
+      return balance(top);
+    }
+
+    // Sedgewick's top-down delete, every node we change is owned first
+    private Node<K, V> delete(Node<K, V> top, K key, Result<V> result) {
+      top = own(top);
+
+      if (key.compareTo(top.key) < 0) {
+        if (!isRed(top.left) && !isRed(top.left.left)) top = moveRedLeft(top);
+        top.left = delete(top.left, key, result);
+      }
+      else {
+        if (isRed(top.left)) top = rotateRight(top);
+        if (key.compareTo(top.key) == 0 && top.right == null) {
+          result.value = top.value;
+          return null;
+        }
+        if (!isRed(top.right) && !isRed(top.right.left)) top = moveRedRight(top);
+        if (key.compareTo(top.key) == 0) {
+          result.value = top.value;
+          Node<K, V> min = top.right;
+          while (min.left != null) min = min.left;
+          top.key = min.key;
+          top.value = min.value;
+          top.right = deleteMin(top.right);
+        }
+        else top.right = delete(top.right, key, result);
+      }
+      return balance(top);
+    }
+
+    private Node<K, V> deleteMin(Node<K, V> top) {
+      if (top.left == null) return null;
+      top = own(top);
+      if (!isRed(top.left) && !isRed(top.left.left)) top = moveRedLeft(top);
+      top.left = deleteMin(top.left);
+      return balance(top);
+    }
+
+    private Node<K, V> moveRedLeft(Node<K, V> top) {
+      colorFlip(top);
+      if (isRed(top.right.left)) {
+        top.right = rotateRight(top.right);
+        top = rotateLeft(top);
+        colorFlip(top);
+      }
+      return top;
+    }
+
+    private Node<K, V> moveRedRight(Node<K, V> top) {
+      colorFlip(top);
+      if (isRed(top.left.left)) {
+        top = rotateRight(top);
+        colorFlip(top);
+      }
+      return top;
+    }
+
+    // the same fixes RedBlackTree runs on the way up, plus the size update
+    private Node<K, V> balance(Node<K, V> top) {
+      if (isRed(top.right) && !isRed(top.left)) top = rotateLeft(top);
+      if (isRed(top.left) && isRed(top.left.left)) top = rotateRight(top);
+      if (isRed(top.left) && isRed(top.right)) colorFlip(top);
+      top.subtreeSize = size(top.left) + size(top.right) + 1;
+      return top;
+    }
+
+    // oldRoot must already be owned
+    private Node<K, V> rotateLeft(Node<K, V> oldRoot) {
+      Node<K, V> newRoot = own(oldRoot.right);
+      oldRoot.right = newRoot.left;
+      newRoot.left = oldRoot;
+      newRoot.isRed = oldRoot.isRed;
+      oldRoot.isRed = true;
+      oldRoot.subtreeSize = size(oldRoot.left) + size(oldRoot.right) + 1;
+      newRoot.subtreeSize = size(newRoot.left) + size(newRoot.right) + 1;
+      return newRoot;
+    }
+
+    // oldRoot must already be owned
+    private Node<K, V> rotateRight(Node<K, V> oldRoot) {
+      Node<K, V> newRoot = own(oldRoot.left);
+      oldRoot.left = newRoot.right;
+      newRoot.right = oldRoot;
+      newRoot.isRed = oldRoot.isRed;
+      oldRoot.isRed = true;
+      oldRoot.subtreeSize = size(oldRoot.left) + size(oldRoot.right) + 1;
+      newRoot.subtreeSize = size(newRoot.left) + size(newRoot.right) + 1;
+      return newRoot;
+    }
+
+    // parent must already be owned; the children get owned here since their colors change
+    private void colorFlip(Node<K, V> parent) {
+      parent.left = own(parent.left);
+      parent.right = own(parent.right);
+      parent.isRed = !parent.isRed;
+      parent.left.isRed = !parent.left.isRed;
+      parent.right.isRed = !parent.right.isRed;
+    }
+  }
+
+  // where put and delete leave the old value
+  private static class Result<V> {
+    private V value;
+  }
+
+  private static class Node<K, V> {
+    private K key;
+    private V value;
+    private Node<K, V> left;
+    private Node<K, V> right;
+    private int subtreeSize;
+    private boolean isRed;
+    private final Object edit; // the batch that created this node - only it may change it
+
+    private Node(K key, V value, boolean isRed, Object edit) {
+      this.key = key;
+      this.value = value;
+      this.subtreeSize = 1;
+      this.isRed = isRed;
+      this.edit = edit;
+    }
+
+    // copy of another node, owned by the given batch
+    private Node(Node<K, V> other, Object edit) {
+      this.key = other.key;
+      this.value = other.value;
+      this.left = other.left;
+      this.right = other.right;
+      this.subtreeSize = other.subtreeSize;
+      this.isRed = other.isRed;
+      this.edit = edit;
+    }
+  }
+}
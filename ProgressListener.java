@@ -0,0 +1,20 @@
+/**
+ * Gets told how far along a download is. Set on a Fetch with
+ * setProgressListener; it's called from the thread doing the download every
+ * time another interval of bytes has been written, and once more at the end,
+ * so it should return quickly.
+ *
+ * @author Sumneet
+ */
+public interface ProgressListener {
+
+    /**
+     * Called as the body is written.
+     *
+     * @param fetch the download
+     * @param bytesDone how many bytes of the body have been written so far
+     * @param bytesTotal how long the body is, or -1 if the server didn't say
+     *                   (or the body is being decompressed)
+     */
+    void progress(Fetch fetch, long bytesDone, long bytesTotal);
+}
@@ -1,12 +1,52 @@
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
+
 /**
  * RedBlackTree 
  * 
  * @author Sumneet Brar
  */
-public class RedBlackTree<K extends Comparable<K>,V>{
+public class RedBlackTree<K extends Comparable<K>,V> implements Iterable<K> {
+
+  // union, intersection and difference fork off a task when the two trees together are bigger than this
+  private static final int PARALLEL_THRESHOLD = 1 << 13;
 
   private Node root; // our root node
-  private Node deletedNode;
+  private Augmentation<K, V, Object> augmentation = null; // null when the tree keeps no aggregates
+  private Map<V, Set<K>> valueIndex = null; // value -> keys, only after enableValueIndex()
+
+  // statistics kept up to date by put and delete, so reading them is O(1)
+  private int redCount = 0;
+  private long totalDepth = 0; // sum of every node's depth, the root has depth 0
+  private long rotationCount = 0;
+  private long colorFlipCount = 0;
+  private long operationCount = 0; // puts and deletes
+  // set while a put or delete runs: only their rotations and flips are counted, since bulk
+  // operations also rotate and flip, some of them from several threads at once
+  private boolean counting = false;
+  private boolean statsDirty = false; // a bulk operation moved nodes around - recount the red count and total depth before reading
+  private Node[] path = newNodeArray(32); // reused by put and delete to remember the way down
+
+  // Node is generic through the tree, and arrays of generic types can't be made directly
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private Node[] newNodeArray(int length) {
+    return (Node[]) new RedBlackTree.Node[length];
+  }
 
   // node class
   private class Node {
@@ -17,12 +57,14 @@ public class RedBlackTree<K extends Comparable<K>,V>{
     private int subtreeSize = 0;
     private K key;
     private V value;
+    private Object agg = null; // the augmentation's value for this subtree
 
     private Node(K key, V value, int size, boolean isRed) {
       this.isRed = isRed;
       this.key = key;
       this.value = value;
       this.subtreeSize = size;
+      if (augmentation != null) agg = augmentation.lift(key, value);
     }
 
   }
@@ -37,56 +79,173 @@ public class RedBlackTree<K extends Comparable<K>,V>{
   }
 
   /**
-   * This method inserts a new key value pair into the tree. 
-   * It assumes that neither the given key nor value are null.
+   * This constructor creates an empty red black tree that keeps the given
+   * augmentation for every subtree, for aggregate queries.
    * 
+   * @param augmentation
+   */
+  @SuppressWarnings("unchecked")
+  public RedBlackTree(Augmentation<K, V, ?> augmentation) {
+    if (augmentation == null) throw new IllegalArgumentException("Augmentation cannot be null.");
+    root = null;
+    this.augmentation = (Augmentation<K, V, Object>) augmentation;
+  }
+
+  /**
+   * Something to keep for every subtree besides its size, like a sum or a
+   * max of the values. combine has to be associative and identity has to be
+   * its identity (a monoid), because the tree groups the keys differently
+   * after every rotation. Every node keeps combine(left's, lift(own), right's)
+   * and the tree keeps it up to date through every rotation.
    * 
-   * @param key given key to add
-   * @param value given value to add
+   * @param <K> key type
+   * @param <V> value type
+   * @param <A> aggregate type
    */
-  public void put(K key, V value) {
-    root = findAndAdd(root, key, value);
-    root.isRed = false; // make sure the root is black
+  public interface Augmentation<K, V, A> {
+    /** The aggregate of no keys at all. */
+    A identity();
+
+    /** The aggregate of a single key value pair. */
+    A lift(K key, V value);
+
+    /** The aggregate of everything in left followed by everything in right. */
+    A combine(A left, A right);
   }
 
   /**
-   * Private method that does the recursive find process
+   * Creates an interval tree: each key is the start of an interval and its
+   * value is the end, and every subtree keeps the largest end in it so
+   * findOverlapping can skip subtrees that end too early. There's one
+   * interval per start, like any other key.
+   * 
+   * @return
+   */
+  public static <K extends Comparable<K>> RedBlackTree<K, K> intervalTree() {
+    return new RedBlackTree<>(new MaxEnd<K>());
+  }
+
+  // the augmentation behind intervalTree: the largest end in the subtree, null when empty
+  private static class MaxEnd<K extends Comparable<K>> implements Augmentation<K, K, K> {
+    public K identity() {
+      return null;
+    }
+
+    public K lift(K start, K end) {
+      return end;
+    }
+
+    public K combine(K left, K right) {
+      if (left == null) return right;
+      if (right == null) return left;
+      return left.compareTo(right) >= 0 ? left : right;
+    }
+  }
+
+  /**
+   * This method inserts a new key value pair into the tree. 
+   * It assumes that neither the given key nor value are null.
+   * 
+   * One walk down remembers the path in a reusable stack, then the fixes run
+   * back up the path. Sizes only change along the path, and the fixes stop as
+   * soon as a level needed none and its node is black, since nothing above it
+   * can need one either.
    * 
-   * @param top the given node to start the recursion at
    * @param key given key to add
    * @param value given value to add
-   * @return the root with the updated links for tha add it just did
    */
-  private Node findAndAdd(Node top, K key, V value) {
-    // if the current node is null, we've reached the the bottom of the tree without finding the correct value
-    if(top == null) return new Node(key, value, 1, true);
+  public void put(K key, V value) {
+    operationCount++;
+    counting = true;
+    try {
+      insert(key, value);
+    } finally {
+      counting = false;
+    }
+  }
 
-    // depending on the current node's key, recurse down in the proper direction
-    int compare = key.compareTo(top.key);
+  private void insert(K key, V value) {
+    if(root == null) {
+      root = new Node(key, value, 1, false);
+      indexValue(key, value);
+      return;
+    }
 
-    // if the given key is smaller than the current key, recurse left
-    if(compare < 0) top.left = findAndAdd(top.left, key, value);
-    // if the given key is greater than the current key, recurse right
-    else if(compare > 0) top.right = findAndAdd(top.right, key, value);
-    // if we find a key with an equal key, replace its value with the given value
-    else top.value = value;
+    // walk down to the bottom, remembering the path
+    int depth = 0;
+    Node currentNode = root;
+    while(true) {
+      pushPath(depth++, currentNode);
+      int compare = key.compareTo(currentNode.key);
 
-    // while recursing up the tree, fix any issues
+      // if we find a key with an equal key, replace its value with the given value - the shape didn't change
+      if(compare == 0) {
+        unindexValue(key, currentNode.value);
+        indexValue(key, value);
+        currentNode.value = value;
+        // the aggregates on the path include the old value
+        if (augmentation != null) {
+          for(int i = depth - 1; i >= 0; i--) update(path[i]);
+        }
+        clearPath(depth);
+        return;
+      }
 
-    // we might end up with a red node that's the right child of a black node, rotate left
-    if(isRed(top.right) && !isRed(top.left)) top = rotateLeft(top);
-    // we might end up with a red node being the child of another red node, rotate right
-    if(isRed(top.left) && isRed(top.left.left)) top = rotateRight(top);
-    // we have 2 red children of a black node, colorFlip!
-    if(isRed(top.left) && isRed(top.right)) colorFlip(top);
+      Node next = compare < 0 ? currentNode.left : currentNode.right;
+      if(next == null) {
+        // hang the new red node off the bottom
+        Node newNode = new Node(key, value, 1, true);
+        if(compare < 0) currentNode.left = newNode;
+        else currentNode.right = newNode;
+        indexValue(key, value);
+        if(!statsDirty) {
+          redCount++;
+          totalDepth += depth; // its parent is path[depth - 1]
+        }
+        break;
+      }
+      currentNode = next;
+    }
 
-    // recalculate the current node's size from its children's sizes
-    top.subtreeSize = size(top.left) + size(top.right) + 1;
+    // every node on the path got one bigger; rotations keep these sizes right from here on
+    for(int i = 0; i < depth; i++) path[i].subtreeSize++;
 
-    return top;
+    // while going back up the tree, fix any issues
+    for(int i = depth - 1; i >= 0; i--) {
+      Node top = path[i];
+      Node fixed = top;
+      boolean changed = false;
+
+      // the aggregate has to be right before a rotation copies it
+      if (augmentation != null) update(top);
+
+      // we might end up with a red node that's the right child of a black node, rotate left
+      if(isRed(fixed.right) && !isRed(fixed.left)) {
+        fixed = rotateLeft(fixed);
+        changed = true;
+      }
+      // we might end up with a red node being the child of another red node, rotate right
+      if(isRed(fixed.left) && isRed(fixed.left.left)) {
+        fixed = rotateRight(fixed);
+        changed = true;
+      }
+      // we have 2 red children of a black node, colorFlip!
+      if(isRed(fixed.left) && isRed(fixed.right)) {
+        colorFlip(fixed);
+        changed = true;
+      }
+
+      if(fixed != top) replaceChild(i, top, fixed);
+
+      // a black node that needed no fixing looks the same to its parent as before the insert
+      // (unless there are aggregates, which change all the way up)
+      if(!changed && !isRed(fixed) && augmentation == null) break;
+    }
+
+    setRed(root, false); // make sure the root is black
+    clearPath(depth);
   }
 
-  
   /**
    * Returns the corresponding value to the given key or null if key
    * is not present.
@@ -120,96 +279,160 @@ public class RedBlackTree<K extends Comparable<K>,V>{
    * Removes a key-value pair, returning the deleted value.
    * Returns null if the key wasn’t present.
    * 
+   * Sedgewick's top-down delete done in one walk: on the way down every node
+   * we enter is made red (or gets a red child) so the node we remove at the
+   * bottom is red, then the fixes and size updates run back up the path. If
+   * the key isn't there we fall off the bottom and the same walk back up
+   * undoes the changes made on the way down.
+   * 
    * @param key
    * @return
    */
   public V delete(K key) {
-    if (root == null || !containsKey(key)) return null;
-    root.isRed = true; // make the root red to take redness with us
-    root = findAndDelete(root, key);
-    if(root != null) root.isRed = false; // make sure the root is black
-
-    // deleted node should have been updated if we successfully deleted the key, or null if not
-    if(deletedNode != null) return deletedNode.value; 
-    else return null;
+    if (root == null) return null;
+    operationCount++;
+    counting = true;
+    try {
+      return remove(key);
+    } finally {
+      counting = false;
+    }
   }
 
-  // need to set deleted node to deleted node in somewhere
-  private Node findAndDelete(Node currentNode, K key) {
-    // every node we enter has to be red - bring redness down
-    // we need to recalculate compare each time so value is up to date
-
-    // we need to go left
-    if(key.compareTo(currentNode.key) < 0) {
-      // if the left node and left's child is not red, color flip to bring redness with us
-      if(!isRed(currentNode.left) && !isRed(currentNode.left.left)) {
-        colorFlip(currentNode);
-        // if the right node's left child is red, rotate right then left to bring the red node up so we can enter it
-        if(isRed(currentNode.right.left)) {
-          currentNode.right = rotateRight(currentNode.right);
-          currentNode = rotateLeft(currentNode);
-          colorFlip(currentNode); // color flip to make the children red instead of the parent
+  private V remove(K key) {
+
+    // make the root red if both children are black, so there's redness to carry down
+    if(!isRed(root.left) && !isRed(root.right)) setRed(root, true);
+
+    V deletedValue = null;
+    boolean deletingMin = false; // after we find a key with two children we delete its successor instead
+    int depth = 0;
+    Node currentNode = root;
+
+    while(currentNode != null) {
+      Node original = currentNode;
+
+      // on the way to the successor, always go left
+      if(deletingMin) {
+        if(currentNode.left == null) {
+          removedNode(currentNode, depth);
+          replaceChild(depth, original, null);
+          break;
         }
+        if(!isRed(currentNode.left) && !isRed(currentNode.left.left)) currentNode = moveRedLeft(currentNode);
+        replaceChild(depth, original, currentNode);
+        pushPath(depth++, currentNode);
+        currentNode = currentNode.left;
+        continue;
       }
-      currentNode.left = findAndDelete(currentNode.left, key); // recurse left
-    }
 
-    // key to delete is in the right subtree
-    else {
-      // move redness right if it exists in left
-      if(isRed(currentNode.left)) currentNode = rotateRight(currentNode);
-      
-      // the current node has the proper key and it has a left red leaf, just return null
-      // could've found key
-      if(key.compareTo(currentNode.key) == 0 && currentNode.right == null) {
-        deletedNode = currentNode;
-        return null;
-      }
-      
-      // right and its left child need to be red
-      if(!isRed(currentNode.right) && !isRed(currentNode.right.left)) {
-        colorFlip(currentNode);
-        if(isRed(currentNode.left.left)) {
-          currentNode = rotateRight(currentNode);
-          colorFlip(currentNode);
+      // we need to go left
+      if(key.compareTo(currentNode.key) < 0) {
+        if(currentNode.left == null) { // the key isn't here
+          pushPath(depth++, currentNode);
+          break;
         }
+        // if the left node and left's child is not red, bring redness with us
+        if(!isRed(currentNode.left) && !isRed(currentNode.left.left)) currentNode = moveRedLeft(currentNode);
+        replaceChild(depth, original, currentNode);
+        pushPath(depth++, currentNode);
+        currentNode = currentNode.left;
       }
 
-      // we found the key here or either above
-      if(key.compareTo(currentNode.key) == 0) {
-        deletedNode = currentNode;
-        Node min = findMinNode(currentNode.right);
-        currentNode.key = min.key;
-        currentNode.value = min.value;
+      // key to delete is here or in the right subtree
+      else {
+        // move redness right if it exists in left
+        if(isRed(currentNode.left)) currentNode = rotateRight(currentNode);
+
+        // the current node has the key and no right child, so it's a red leaf - just unlink it
+        if(key.compareTo(currentNode.key) == 0 && currentNode.right == null) {
+          deletedValue = currentNode.value;
+          removedNode(currentNode, depth);
+          replaceChild(depth, original, null);
+          break;
+        }
+
+        if(currentNode.right == null) { // the key isn't here
+          replaceChild(depth, original, currentNode);
+          pushPath(depth++, currentNode);
+          break;
+        }
 
-        // call private function th delete the smallest node
-        currentNode.right = deleteMinNode(currentNode.right);
+        // right and its left child need to be red
+        if(!isRed(currentNode.right) && !isRed(currentNode.right.left)) currentNode = moveRedRight(currentNode);
+        replaceChild(depth, original, currentNode);
+        pushPath(depth++, currentNode);
+
+        // we found the key - take the successor's key and value, then go delete the successor
+        if(key.compareTo(currentNode.key) == 0) {
+          deletedValue = currentNode.value;
+          Node min = findMinNode(currentNode.right);
+          currentNode.key = min.key;
+          currentNode.value = min.value;
+          deletingMin = true;
+        }
+        currentNode = currentNode.right;
       }
-      else currentNode.right = findAndDelete(currentNode.right, key); // recurse right
     }
 
-    // recalculate the current node's size from its children's sizes
-    currentNode.subtreeSize = size(currentNode.left) + size(currentNode.right) + 1;
-    return fixForDelete(currentNode);
+    // going back up, recalculate each size from its children and fix any issues
+    for(int i = depth - 1; i >= 0; i--) {
+      Node top = path[i];
+      update(top);
+      Node fixed = fixForDelete(top);
+      if(fixed != top) replaceChild(i, top, fixed);
+    }
+
+    if(root != null) setRed(root, false); // make sure the root is black
+    clearPath(depth);
+    if(deletedValue != null) unindexValue(key, deletedValue);
+    return deletedValue;
   }
 
-  private Node deleteMinNode(Node node) {
-    if (node.left == null) return null;
+  // a node at the given depth was unlinked from the tree
+  private void removedNode(Node node, int depth) {
+    if(statsDirty) return;
+    if(node.isRed) redCount--;
+    totalDepth -= depth;
+  }
 
-    if (!isRed(node.left) && !isRed(node.left.left)) {
-      colorFlip(node);
-      if(isRed(node.left.left)) {
+  private Node moveRedLeft(Node node) {
+    colorFlip(node);
+    // if the right node's left child is red, rotate right then left to bring the red node up so we can enter it
+    if(isRed(node.right.left)) {
+      node.right = rotateRight(node.right);
+      node = rotateLeft(node);
+      colorFlip(node); // color flip to make the children red instead of the parent
+    }
+    return node;
+  }
+
+  private Node moveRedRight(Node node) {
+    colorFlip(node);
+    if(isRed(node.left.left)) {
       node = rotateRight(node);
       colorFlip(node);
-      }
     }
-        
-    node.left = deleteMinNode(node.left);
-    // recalculate the current node's size from its children's sizes
-    node.subtreeSize = size(node.left) + size(node.right) + 1;
-    return fixForDelete(node);
+    return node;
+  }
+
+  // the path stack put and delete share - grows as the tree gets taller and never shrinks
+  private void pushPath(int depth, Node node) {
+    if(depth == path.length) path = Arrays.copyOf(path, path.length * 2);
+    path[depth] = node;
+  }
+
+  // don't hold on to nodes after the operation is done
+  private void clearPath(int depth) {
+    Arrays.fill(path, 0, depth, null);
+  }
+
+  // the node at this depth of the path was replaced - point its parent (or the root) at the new one
+  private void replaceChild(int depth, Node oldChild, Node newChild) {
+    if(depth == 0) root = newChild;
+    else if(path[depth - 1].left == oldChild) path[depth - 1].left = newChild;
+    else path[depth - 1].right = newChild;
   }
-  
 
   /**
    * Returns true if the key is present.
@@ -243,28 +466,15 @@ public class RedBlackTree<K extends Comparable<K>,V>{
   /**
    * Returns true if the value is present.
    * 
-   * Search every node comparing the value to the given value?
+   * O(1) expected with the value index on, otherwise a scan that stops at
+   * the first match.
    * 
    * @param value
    * @return
    */
   public boolean containsValue(V value) {
-    return containsV(root, value);
-  }
-
-  public boolean containsV(Node currentNode, V value) {
-    if (currentNode == null) return false;
-
-    // comapare the value of the currentNode with the given value
-    if(currentNode.value.equals(value)) return true;
-
-    // recurse down the tree comparing every node's value
-    boolean left = containsV(currentNode.left, value);
-    boolean right = containsV(currentNode.right, value);
-
-    if (left != false) return true; // if left subtree found it, return true
-    else if (right != false) return true; // if right subtree found it, return true
-    else return false; // we didn't find it
+    if (valueIndex != null) return valueIndex.containsKey(value);
+    return findValueNode(value) != null;
   }
 
   /**
@@ -290,29 +500,101 @@ public class RedBlackTree<K extends Comparable<K>,V>{
     else return node.subtreeSize;
   }
 
+  private Object agg(Node node) {
+    if (node == null) return augmentation.identity();
+    else return node.agg;
+  }
+
+  /**
+   * Recalculates the node's size (and aggregate, if we keep one) from its
+   * children. Everything that changes a node's children ends with this.
+   * 
+   * @param node
+   */
+  private void update(Node node) {
+    node.subtreeSize = size(node.left) + size(node.right) + 1;
+    if (augmentation != null) {
+      Object own = augmentation.lift(node.key, node.value);
+      node.agg = augmentation.combine(augmentation.combine(agg(node.left), own), agg(node.right));
+    }
+  }
+
   /**
    * Finds a key that maps to the given value, or returns null
    * if there is none.
    * 
+   * O(1) expected with the value index on, otherwise a scan that stops at
+   * the first match (the smallest key with the value).
+   * 
    * @param value
    * @return
    */
   public K reverseLookup(V value) {
-    return reverseLookup(root, value).key;
+    if (valueIndex != null) {
+      Set<K> keys = valueIndex.get(value);
+      if (keys == null) return null; // value not found
+      return keys.iterator().next();
+    }
+
+    Node node = findValueNode(value);
+    if (node == null) return null; // value not found
+    return node.key;
+  }
+
+  // walks the keys in order and stops at the first node with an equal value
+  private Node findValueNode(V value) {
+    Cursor cursor = new Cursor();
+    cursor.seekFirst();
+    while (cursor.hasNext()) {
+      Node node = cursor.next();
+      if (Objects.equals(node.value, value)) return node;
+    }
+    return null;
   }
 
-  private Node reverseLookup(Node currentNode, V value) {
-    if(currentNode == null) return null;
-    // comapare the value of the currentNode with the given value
-    if(currentNode.value == value) return currentNode;
+  /**
+   * Turns on the value index for this tree, so containsValue and
+   * reverseLookup no longer scan the tree. The index is built from the
+   * current contents and then kept up to date by put and delete (and rebuilt
+   * after split, join and the set operations). Trees that never call this
+   * don't pay any memory for it.
+   */
+  public void enableValueIndex() {
+    if (valueIndex != null) return;
+    valueIndex = new HashMap<>();
+    rebuildValueIndex();
+  }
+
+  // refill the index from the tree after a bulk change (does nothing when the index is off)
+  private void rebuildValueIndex() {
+    if (valueIndex == null) return;
+    valueIndex.clear();
+    Cursor cursor = new Cursor();
+    cursor.seekFirst();
+    while (cursor.hasNext()) {
+      Node node = cursor.next();
+      indexValue(node.key, node.value);
+    }
+  }
 
-    // recurse down the tree comparing every node's value
-    Node left = reverseLookup(currentNode.left, value);
-    Node right = reverseLookup(currentNode.right, value);
+  // remember that key maps to value (does nothing when the index is off)
+  private void indexValue(K key, V value) {
+    if (valueIndex == null) return;
+    Set<K> keys = valueIndex.get(value);
+    if (keys == null) {
+      keys = new HashSet<>();
+      valueIndex.put(value, keys);
+    }
+    keys.add(key);
+  }
 
-    if (left != null) {return left;} // if left is not null, we found it in the left subtree - return the node stored in left
-    else if (right != null) {return right;} // if right is not null - return the node stored in right
-    else return null; // we didn't find the value :( - return null
+  // forget that key maps to value (does nothing when the index is off)
+  private void unindexValue(K key, V value) {
+    if (valueIndex == null) return;
+    Set<K> keys = valueIndex.get(value);
+    if (keys == null) return;
+    keys.remove(key);
+    if (keys.isEmpty()) valueIndex.remove(value);
   }
 
   /**
@@ -383,9 +665,7 @@ public class RedBlackTree<K extends Comparable<K>,V>{
    */
   public K findPredecessor(K key) {
 
-    // first find the node
-    if (!containsKey(key)) return null; // see if the key is in the tree
-
+    // find the node and the predecessor in one walk - if the key isn't here we fall off the bottom
     Node currentNode = root;
     Node predecessor = null; 
 
@@ -435,9 +715,7 @@ public class RedBlackTree<K extends Comparable<K>,V>{
    */
   public K findSuccessor(K key) {
 
-    // first find the node
-    if (!containsKey(key)) return null; // see if the node is in the tree
-
+    // find the node and the successor in one walk - if the key isn't here we fall off the bottom
     Node currentNode = root;
     Node successor = null; 
 
@@ -541,28 +819,111 @@ public class RedBlackTree<K extends Comparable<K>,V>{
   }
 
   /**
-   * Returns the number of red nodes in the tree
+   * Returns the combined aggregate of every key in [lo, hi), in key order.
+   * A null bound means that side is open. Takes O(log n): it walks down to
+   * the first node inside the range and then along the two edges of the
+   * range, using the aggregates kept for the whole subtrees in between
+   * instead of visiting them. Throws an IllegalStateException if the tree
+   * was made without an augmentation.
    * 
+   * @param lo smallest key to include, or null
+   * @param hi first key past the range, or null
    * @return
    */
-  public int countRedNodes() {return countRedNodes(root);}
+  @SuppressWarnings("unchecked")
+  public <A> A aggregate(K lo, K hi) {
+    if (augmentation == null) throw new IllegalStateException("This tree has no augmentation!");
 
-  private int countRedNodes(Node node) {
-    if(node == null) return 0;
+    // find the highest node inside the range - everything in range is under it
+    Node node = root;
+    while (node != null) {
+      if (lo != null && node.key.compareTo(lo) < 0) node = node.right;
+      else if (hi != null && node.key.compareTo(hi) >= 0) node = node.left;
+      else break;
+    }
+    if (node == null) return (A) augmentation.identity();
+
+    // keys >= lo in the left subtree: each time we go left we pick up a node and its right subtree,
+    // and those come after anything we pick up further down
+    Object below = augmentation.identity();
+    for (Node n = node.left; n != null; ) {
+      if (lo == null || n.key.compareTo(lo) >= 0) {
+        Object piece = augmentation.combine(augmentation.lift(n.key, n.value), agg(n.right));
+        below = augmentation.combine(piece, below);
+        if (lo == null) {
+          below = augmentation.combine(agg(n.left), below); // no lower bound - the whole left side is in
+          break;
+        }
+        n = n.left;
+      }
+      else n = n.right;
+    }
 
-    int redNodes = 0;
-    if(isRed(node)) redNodes = 1;
+    // keys < hi in the right subtree, the mirror image
+    Object above = augmentation.identity();
+    for (Node n = node.right; n != null; ) {
+      if (hi == null || n.key.compareTo(hi) < 0) {
+        Object piece = augmentation.combine(agg(n.left), augmentation.lift(n.key, n.value));
+        above = augmentation.combine(above, piece);
+        if (hi == null) {
+          above = augmentation.combine(above, agg(n.right));
+          break;
+        }
+        n = n.right;
+      }
+      else n = n.left;
+    }
 
-    redNodes += countRedNodes(node.left);
-    redNodes += countRedNodes(node.right);
+    Object own = augmentation.lift(node.key, node.value);
+    return (A) augmentation.combine(augmentation.combine(below, own), above);
+  }
 
-    return redNodes;
+  /**
+   * For a tree made with intervalTree(): returns every interval [start, end]
+   * that overlaps [lo, hi] (both ends included), as start -> end entries in
+   * order of start. Subtrees whose largest end is below lo are skipped, so
+   * this costs O(k log n) for k results instead of a full scan.
+   * 
+   * @param lo
+   * @param hi
+   * @return
+   */
+  public List<Map.Entry<K, V>> findOverlapping(K lo, K hi) {
+    if (!(augmentation instanceof MaxEnd)) throw new IllegalStateException("This isn't an interval tree!");
+    List<Map.Entry<K, V>> found = new ArrayList<>();
+    findOverlapping(root, lo, hi, found);
+    return found;
+  }
+
+  // in this mode V is K, so the values and aggregates are interval ends
+  @SuppressWarnings("unchecked")
+  private void findOverlapping(Node node, K lo, K hi, List<Map.Entry<K, V>> found) {
+    if (node == null || ((K) node.agg).compareTo(lo) < 0) return; // everything here ends before lo
+
+    findOverlapping(node.left, lo, hi, found);
+    if (node.key.compareTo(hi) > 0) return; // this node and everything to its right starts after hi
+    if (((K) node.value).compareTo(lo) >= 0) found.add(new AbstractMap.SimpleImmutableEntry<>(node.key, node.value));
+    findOverlapping(node.right, lo, hi, found);
+  }
+
+  /**
+   * Returns the number of red nodes in the tree. O(1): the count is kept up
+   * to date by put and delete.
+   * 
+   * @return
+   */
+  public int countRedNodes() {
+    ensureStats();
+    return redCount;
   }
 
   /**
    * Returns the height of the tree, where an empty tree
    * has height 0.
    * 
+   * This one still visits every node; use calcHeightBound when O(log n) is
+   * needed.
+   * 
    * Recursive function: https://stackoverflow.com/questions/20037137/how-to-calculate-the-height-of-a-red-black-tree
    * 
    * @return
@@ -581,6 +942,17 @@ public class RedBlackTree<K extends Comparable<K>,V>{
     return Math.max(left, right) + 1;
   }
 
+  /**
+   * Returns an upper bound on the height in O(log n). No path has two red
+   * nodes in a row and the root is black, so no path is longer than twice the
+   * black height.
+   * 
+   * @return
+   */
+  public int calcHeightBound() {
+    return 2 * calcBlackHeight();
+  }
+
   /**
    * Returns the black height of the tree, or 0 for an
    * empty tree.
@@ -606,28 +978,898 @@ public class RedBlackTree<K extends Comparable<K>,V>{
    * Returns the average distance of the nodes from the root. 
    * Empty trees should return NaN.
    * 
+   * O(1): the total depth is kept up to date by put, delete and every
+   * rotation, in a long so it can't overflow on big trees.
+   * 
    * @return
    */
   public double calcAverageDepth() {
     if(isEmpty()) return Double.NaN; // empty tree, return NaN
+    ensureStats();
+    return (double) totalDepth / size(root); // divide sum of depth and the number of nodes to get average
+  }
+
+  /**
+   * Returns the number of rotations done by puts and deletes since the tree
+   * was made (or since resetCounters). Rotations done by bulk operations
+   * (split, join, union, ...) aren't counted.
+   * 
+   * @return
+   */
+  public long getRotationCount() {
+    return rotationCount;
+  }
 
-    int sumOfDepth = calcTotalDepth(root, 0);
-    int numOfNodes = size(root); // calculate the number of nodes in the tree
+  /**
+   * Returns the number of color flips done by puts and deletes since the
+   * tree was made (or since resetCounters). Flips done by bulk operations
+   * aren't counted.
+   * 
+   * @return
+   */
+  public long getColorFlipCount() {
+    return colorFlipCount;
+  }
 
-    return (double) sumOfDepth / numOfNodes; // divide sum of depth and the number of nodes to get average
+  /**
+   * Returns the number of puts and deletes since the tree was made (or since
+   * resetCounters). Divide the rotation or flip count by this for the
+   * average per operation.
+   * 
+   * @return
+   */
+  public long getOperationCount() {
+    return operationCount;
   }
 
-  private int calcTotalDepth(Node node, int currentDepth) {
-    if(node == null) return 0;
+  /**
+   * Sets the rotation, color flip and operation counters back to 0.
+   */
+  public void resetCounters() {
+    rotationCount = 0;
+    colorFlipCount = 0;
+    operationCount = 0;
+  }
+
+  // bulk operations (split, join, union, ...) don't keep the red count and total depth,
+  // they mark them dirty and the next read recounts them once
+  private void ensureStats() {
+    if(!statsDirty) return;
+
+    int reds = 0;
+    long depths = 0;
+    // depth first with an explicit stack - it never holds more than two nodes per level
+    Node[] stack = newNodeArray(2 * calcHeightBound() + 2);
+    int[] stackDepths = new int[stack.length];
+    int top = 0;
+    if(root != null) stack[top++] = root;
+    while(top > 0) {
+      Node node = stack[--top];
+      int depth = stackDepths[top];
+      if(node.isRed) reds++;
+      depths += depth;
+      if(node.left != null) {
+        stack[top] = node.left;
+        stackDepths[top++] = depth + 1;
+      }
+      if(node.right != null) {
+        stack[top] = node.right;
+        stackDepths[top++] = depth + 1;
+      }
+    }
+
+    redCount = reds;
+    totalDepth = depths;
+    statsDirty = false;
+  }
+
+  // for a tree that was just emptied by a bulk operation
+  private void clearStats() {
+    redCount = 0;
+    totalDepth = 0;
+    statsDirty = false;
+  }
+
+  /**
+   * Builds a tree from entries whose keys are strictly increasing, in O(n)
+   * time without any rotations. The tree is shaped like a 2-3 tree with every
+   * leaf at the same depth (3-nodes are a black node with a red left child),
+   * so it is a valid left-leaning red black tree with exact subtree sizes.
+   * 
+   * @param entries the sorted entries
+   * @param count how many entries to take from the iterator
+   * @return
+   */
+  public static <K extends Comparable<K>, V> RedBlackTree<K, V> buildFromSorted(
+      Iterator<? extends Map.Entry<K, V>> entries, int count) {
+    if (count < 0) throw new IllegalArgumentException("Count can't be negative!");
+
+    RedBlackTree<K, V> tree = new RedBlackTree<>();
+    tree.statsDirty = true; // counted the first time someone asks
+    int blackHeight = 31 - Integer.numberOfLeadingZeros(count + 1); // floor(log2(count + 1))
+    tree.root = tree.new SortedBuilder(entries).build(count, blackHeight);
+    if (tree.root != null) tree.root.isRed = false;
+    return tree;
+  }
+
+  /**
+   * Same as above, for when we don't know how many entries there are. The
+   * entries get copied into a list first so we can count them.
+   * 
+   * @param entries the sorted entries
+   * @return
+   */
+  public static <K extends Comparable<K>, V> RedBlackTree<K, V> buildFromSorted(
+      Iterator<? extends Map.Entry<K, V>> entries) {
+    List<Map.Entry<K, V>> list = new ArrayList<>();
+    while (entries.hasNext()) list.add(entries.next());
+    return buildFromSorted(list.iterator(), list.size());
+  }
+
+  /**
+   * Builds a subtree of n nodes where every path has the given number of
+   * black nodes. A subtree with black height h can hold anywhere from
+   * 2^h - 1 (all 2-nodes) to 3^h - 1 (all 3-nodes) keys, so at each level we
+   * use a 2-node if the rest can be split into two legal children, and a
+   * 3-node (three children) otherwise.
+   */
+  private class SortedBuilder {
+    private final Iterator<? extends Map.Entry<K, V>> entries;
+    private K lastKey = null;
+
+    private SortedBuilder(Iterator<? extends Map.Entry<K, V>> entries) {
+      this.entries = entries;
+    }
+
+    private Node build(int n, int blackHeight) {
+      if (n == 0) return null;
+
+      int childHeight = blackHeight - 1;
+      long most = maxNodes(childHeight);
+
+      if (n - 1 <= 2 * most) {
+        // a black 2-node
+        int leftSize = (n - 1) / 2;
+        Node left = build(leftSize, childHeight);
+        Node node = nextNode(false);
+        node.left = left;
+        node.right = build(n - 1 - leftSize, childHeight);
+        update(node);
+        return node;
+      }
+
+      // a 3-node: a red left node over two children, and a black node with a third on its right
+      int rest = n - 2;
+      int firstSize = rest / 3;
+      int secondSize = (rest - firstSize) / 2;
+      Node first = build(firstSize, childHeight);
+      Node redNode = nextNode(true);
+      redNode.left = first;
+      redNode.right = build(secondSize, childHeight);
+      update(redNode);
+
+      Node node = nextNode(false);
+      node.left = redNode;
+      node.right = build(rest - firstSize - secondSize, childHeight);
+      update(node);
+      return node;
+    }
+
+    // 3^h - 1, capped so it can't overflow
+    private long maxNodes(int blackHeight) {
+      long nodes = 1;
+      for (int i = 0; i < blackHeight && nodes < Integer.MAX_VALUE; i++) nodes *= 3;
+      return nodes - 1;
+    }
+
+    private Node nextNode(boolean isRed) {
+      if (!entries.hasNext()) throw new IllegalArgumentException("Fewer entries than the count given!");
+      Map.Entry<K, V> entry = entries.next();
+      if (lastKey != null && entry.getKey().compareTo(lastKey) <= 0) {
+        throw new IllegalArgumentException("Keys are not strictly increasing!");
+      }
+      lastKey = entry.getKey();
+      return new Node(entry.getKey(), entry.getValue(), 1, isRed);
+    }
+  }
+
+  /**
+   * Moves every key greater than or equal to the given key into a new tree
+   * and returns it. This tree keeps the smaller keys. O(log n).
+   * 
+   * @param key
+   * @return the tree with the keys >= key
+   */
+  public RedBlackTree<K, V> split(K key) {
+    statsDirty = true;
+    Split parts = split(root, key);
+    RedBlackTree<K, V> upper = new RedBlackTree<>();
+    upper.augmentation = augmentation;
+    upper.statsDirty = true;
+
+    root = blacken(parts.left);
+    // the key itself goes with the upper part, in front of everything else there
+    if (parts.middle != null) upper.root = join(null, parts.middle, parts.right);
+    else upper.root = blacken(parts.right);
+
+    // keys moved in bulk - the value indexes have to be rebuilt
+    rebuildValueIndex();
+    if (valueIndex != null) upper.enableValueIndex();
+    return upper;
+  }
+
+  /**
+   * Appends every key of the other tree to this one. All the other tree's
+   * keys have to be greater than all of ours. The other tree ends up empty.
+   * O(log n).
+   * 
+   * @param other
+   */
+  public void join(RedBlackTree<K, V> other) {
+    if (root != null && other.root != null && findLastKey().compareTo(other.findFirstKey()) >= 0) {
+      throw new IllegalArgumentException("Keys of the other tree must all be greater!");
+    }
+    checkAugmentation(other);
+    statsDirty = true;
+    root = join(root, other.root);
+    other.root = null;
+    rebuildValueIndex();
+    other.rebuildValueIndex();
+    other.clearStats();
+  }
+
+  /**
+   * Adds every key of the other tree to this one. Where both trees have a
+   * key, this tree's value is kept. The other tree ends up empty. Runs in
+   * O(m log(n/m + 1)) for trees of size m <= n, and forks the two halves off
+   * to the common fork/join pool when the trees are large.
+   * 
+   * @param other
+   */
+  public void union(RedBlackTree<K, V> other) {
+    checkAugmentation(other);
+    statsDirty = true;
+    root = blacken(union(root, other.root));
+    other.root = null;
+    rebuildValueIndex();
+    other.rebuildValueIndex();
+    other.clearStats();
+  }
+
+  /**
+   * Keeps only the keys that are also in the other tree. The other tree
+   * ends up empty. Same cost as union.
+   * 
+   * @param other
+   */
+  public void intersection(RedBlackTree<K, V> other) {
+    checkAugmentation(other);
+    statsDirty = true;
+    root = blacken(intersection(root, other.root));
+    other.root = null;
+    rebuildValueIndex();
+    other.rebuildValueIndex();
+    other.clearStats();
+  }
+
+  /**
+   * Removes every key that is in the other tree. The other tree ends up
+   * empty. Same cost as union.
+   * 
+   * @param other
+   */
+  public void difference(RedBlackTree<K, V> other) {
+    checkAugmentation(other);
+    statsDirty = true;
+    root = blacken(difference(root, other.root));
+    other.root = null;
+    rebuildValueIndex();
+    other.rebuildValueIndex();
+    other.clearStats();
+  }
+
+  // nodes move between the trees along with their aggregates, so both have to keep the same one
+  private void checkAugmentation(RedBlackTree<K, V> other) {
+    if (other.augmentation != augmentation) {
+      throw new IllegalArgumentException("Both trees must have the same augmentation!");
+    }
+  }
+
+  private Node union(Node a, Node b) {
+    if (a == null) return b;
+    if (b == null) return a;
+
+    boolean parallel = size(a) + size(b) > PARALLEL_THRESHOLD;
+    Node aLeft = a.left;
+    Node aRight = a.right;
+    Split parts = split(b, a.key); // a's node stays, b's copy of the key (parts.middle) is dropped
+
+    Node left;
+    Node right;
+    if (parallel) {
+      ForkJoinTask<Node> leftTask = ForkJoinTask.adapt(() -> union(aLeft, parts.left)).fork();
+      right = union(aRight, parts.right);
+      left = leftTask.join();
+    }
+    else {
+      left = union(aLeft, parts.left);
+      right = union(aRight, parts.right);
+    }
+    return join(left, a, right);
+  }
+
+  private Node intersection(Node a, Node b) {
+    if (a == null || b == null) return null;
+
+    boolean parallel = size(a) + size(b) > PARALLEL_THRESHOLD;
+    Node aLeft = a.left;
+    Node aRight = a.right;
+    Split parts = split(b, a.key);
+
+    Node left;
+    Node right;
+    if (parallel) {
+      ForkJoinTask<Node> leftTask = ForkJoinTask.adapt(() -> intersection(aLeft, parts.left)).fork();
+      right = intersection(aRight, parts.right);
+      left = leftTask.join();
+    }
+    else {
+      left = intersection(aLeft, parts.left);
+      right = intersection(aRight, parts.right);
+    }
+
+    // only keep a's key if b had it too
+    if (parts.middle != null) return join(left, a, right);
+    else return join(left, right);
+  }
+
+  private Node difference(Node a, Node b) {
+    if (a == null) return null;
+    if (b == null) return a;
+
+    boolean parallel = size(a) + size(b) > PARALLEL_THRESHOLD;
+    Node bLeft = b.left;
+    Node bRight = b.right;
+    Split parts = split(a, b.key); // drops a's copy of b's key, if it has one
+
+    Node left;
+    Node right;
+    if (parallel) {
+      ForkJoinTask<Node> leftTask = ForkJoinTask.adapt(() -> difference(parts.left, bLeft)).fork();
+      right = difference(parts.right, bRight);
+      left = leftTask.join();
+    }
+    else {
+      left = difference(parts.left, bLeft);
+      right = difference(parts.right, bRight);
+    }
+    return join(left, right);
+  }
+
+  // the three pieces of a split: keys below, the node with the key (or null), keys above
+  private class Split {
+    private Node left;
+    private Node middle;
+    private Node right;
+
+    private Split(Node left, Node middle, Node right) {
+      this.left = left;
+      this.middle = middle;
+      this.right = right;
+    }
+  }
+
+  /**
+   * Splits the subtree around the key. Walks down to the key and joins the
+   * pieces back together on the way up.
+   */
+  private Split split(Node top, K key) {
+    if (top == null) return new Split(null, null, null);
+
+    Node left = top.left;
+    Node right = top.right;
+    int compare = key.compareTo(top.key);
+
+    if (compare == 0) {
+      top.left = null;
+      top.right = null;
+      update(top);
+      return new Split(left, top, right);
+    }
+    if (compare < 0) {
+      Split parts = split(left, key);
+      parts.right = join(parts.right, top, right); // top and its right subtree are all above the key
+      return parts;
+    }
+    Split parts = split(right, key);
+    parts.left = join(left, top, parts.left); // top and its left subtree are all below the key
+    return parts;
+  }
+
+  /**
+   * Joins two trees where every key in left is less than every key in right,
+   * using the smallest node of right as the middle.
+   */
+  private Node join(Node left, Node right) {
+    if (left == null) return blacken(right);
+    if (right == null) return blacken(left);
+
+    Split parts = split(right, findMinNode(right).key);
+    return join(left, parts.middle, parts.right);
+  }
+
+  /**
+   * Joins left, the middle node and right, where the keys go in that order.
+   * The taller tree is walked down its inner spine to a black node with the
+   * same black height as the shorter tree, the middle node is hung there as
+   * a red node, and the usual insert fixes are run on the way back up. This
+   * costs O(difference in black heights).
+   */
+  private Node join(Node left, Node middle, Node right) {
+    left = blacken(left);
+    right = blacken(right);
+    int leftHeight = blackHeight(left);
+    int rightHeight = blackHeight(right);
+
+    Node top;
+    if (leftHeight > rightHeight) top = joinRight(left, leftHeight, middle, right, rightHeight);
+    else if (leftHeight < rightHeight) top = joinLeft(right, rightHeight, middle, left, leftHeight);
+    else {
+      middle.left = left;
+      middle.right = right;
+      update(middle);
+      top = middle;
+    }
+    top.isRed = false;
+    return top;
+  }
+
+  // walk down the right spine of the taller left tree
+  private Node joinRight(Node top, int height, Node middle, Node right, int rightHeight) {
+    if (!isRed(top) && height == rightHeight) {
+      middle.left = top;
+      middle.right = right;
+      middle.isRed = true;
+      update(middle);
+      return middle;
+    }
+
+    top.right = joinRight(top.right, isRed(top) ? height : height - 1, middle, right, rightHeight);
+    update(top);
+    return fixForJoin(top);
+  }
+
+  // walk down the left spine of the taller right tree
+  private Node joinLeft(Node top, int height, Node middle, Node left, int leftHeight) {
+    if (!isRed(top) && height == leftHeight) {
+      middle.left = left;
+      middle.right = top;
+      middle.isRed = true;
+      update(middle);
+      return middle;
+    }
+
+    top.left = joinLeft(top.left, isRed(top) ? height : height - 1, middle, left, leftHeight);
+    update(top);
+    return fixForJoin(top);
+  }
+
+  // the same fixes put runs on the way up after an insert
+  private Node fixForJoin(Node top) {
+    if(isRed(top.right) && !isRed(top.left)) top = rotateLeft(top);
+    if(isRed(top.left) && isRed(top.left.left)) top = rotateRight(top);
+    if(isRed(top.left) && isRed(top.right)) colorFlip(top);
+    return top;
+  }
+
+  // subtrees that get joined need a black root
+  private Node blacken(Node node) {
+    if (node != null) node.isRed = false;
+    return node;
+  }
+
+  // number of black nodes on the path down the left side
+  private int blackHeight(Node node) {
+    int height = 0;
+    while (node != null) {
+      if (!isRed(node)) height++;
+      node = node.left;
+    }
+    return height;
+  }
+
+  /**
+   * Returns an iterator over all the keys in increasing order. The whole scan
+   * is O(n): it keeps the path to the current node on an explicit stack
+   * instead of walking down from the root for every key.
+   * 
+   * The tree shouldn't be changed while the iterator is in use.
+   * 
+   * @return
+   */
+  public Iterator<K> iterator() {
+    return new KeyIterator(null, null);
+  }
+
+  /**
+   * Returns an iterator over the keys k with lo <= k < hi, in increasing
+   * order. Either bound can be null to leave that side open. Finding the
+   * first key is O(log n), and every step after that is O(1) amortized.
+   * 
+   * @param lo
+   * @param hi
+   * @return
+   */
+  public Iterator<K> range(K lo, K hi) {
+    return new KeyIterator(lo, hi);
+  }
+
+  /**
+   * Returns a read-only view of the part of the tree with keys less than hi.
+   * The view reflects later changes to the tree.
+   * 
+   * @param hi
+   * @return
+   */
+  public SortedMap<K, V> headMap(K hi) {
+    return new RangeMap(null, hi);
+  }
+
+  /**
+   * Returns a read-only view of the part of the tree with keys greater than
+   * or equal to lo.
+   * 
+   * @param lo
+   * @return
+   */
+  public SortedMap<K, V> tailMap(K lo) {
+    return new RangeMap(lo, null);
+  }
+
+  /**
+   * Returns a read-only view of the part of the tree with lo <= key < hi.
+   * 
+   * @param lo
+   * @param hi
+   * @return
+   */
+  public SortedMap<K, V> subMap(K lo, K hi) {
+    if (lo.compareTo(hi) > 0) throw new IllegalArgumentException("lo is greater than hi!");
+    return new RangeMap(lo, hi);
+  }
+
+  /**
+   * Returns a spliterator over all the keys. It splits by rank (using the
+   * subtree sizes), so parallel streams get evenly sized halves.
+   * 
+   * @return
+   */
+  @Override
+  public Spliterator<K> spliterator() {
+    return new KeySpliterator(0, size());
+  }
+
+  /**
+   * Returns a spliterator over the keys k with lo <= k < hi. Either bound
+   * can be null.
+   * 
+   * @param lo
+   * @param hi
+   * @return
+   */
+  public Spliterator<K> rangeSpliterator(K lo, K hi) {
+    int from = lo == null ? 0 : countLess(lo);
+    int to = hi == null ? size() : countLess(hi);
+    return new KeySpliterator(from, Math.max(from, to));
+  }
+
+  /**
+   * Returns how many keys are strictly less than the given key, whether or
+   * not the key itself is in the tree.
+   */
+  private int countLess(K key) {
+    Node currentNode = root;
+    int count = 0;
+    while (currentNode != null) {
+      if (key.compareTo(currentNode.key) <= 0) currentNode = currentNode.left;
+      else {
+        count += size(currentNode.left) + 1;
+        currentNode = currentNode.right;
+      }
+    }
+    return count;
+  }
+
+  // smallest node with a key >= the given key, or null
+  private Node ceilingNode(K key) {
+    Node currentNode = root;
+    Node best = null;
+    while (currentNode != null) {
+      if (key.compareTo(currentNode.key) <= 0) {
+        best = currentNode;
+        currentNode = currentNode.left;
+      }
+      else currentNode = currentNode.right;
+    }
+    return best;
+  }
+
+  // largest node with a key < the given key, or null
+  private Node lowerNode(K key) {
+    Node currentNode = root;
+    Node best = null;
+    while (currentNode != null) {
+      if (key.compareTo(currentNode.key) > 0) {
+        best = currentNode;
+        currentNode = currentNode.right;
+      }
+      else currentNode = currentNode.left;
+    }
+    return best;
+  }
+
+  /**
+   * In-order walk that keeps its own stack of the nodes we still have to
+   * visit (each one is a node we went left from). The stack is one array,
+   * sized for the tallest tree that could hold n nodes, 2 * log2(n + 1).
+   */
+  private class Cursor {
+    private Node[] stack;
+    private int depth = 0;
+
+    private Cursor() {
+      int height = 2 * (32 - Integer.numberOfLeadingZeros(size() + 1)) + 2;
+      stack = newNodeArray(height);
+    }
+
+    // start at the smallest key
+    private void seekFirst() {
+      pushLeftPath(root);
+    }
+
+    // start at the smallest key >= lo
+    private void seekCeiling(K lo) {
+      Node currentNode = root;
+      while (currentNode != null) {
+        if (lo.compareTo(currentNode.key) <= 0) {
+          push(currentNode);
+          currentNode = currentNode.left;
+        }
+        else currentNode = currentNode.right;
+      }
+    }
+
+    // start at the key with the given rank
+    private void seekRank(int rank) {
+      Node currentNode = root;
+      while (currentNode != null) {
+        int leftSize = size(currentNode.left);
+        if (rank < leftSize) {
+          push(currentNode);
+          currentNode = currentNode.left;
+        }
+        else if (rank == leftSize) {
+          push(currentNode);
+          return;
+        }
+        else {
+          rank -= leftSize + 1;
+          currentNode = currentNode.right;
+        }
+      }
+    }
+
+    private boolean hasNext() {
+      return depth > 0;
+    }
+
+    // the next node in order - its right subtree's left path goes on the stack
+    private Node next() {
+      Node node = stack[--depth];
+      pushLeftPath(node.right);
+      return node;
+    }
+
+    private Node peek() {
+      return stack[depth - 1];
+    }
+
+    private void pushLeftPath(Node node) {
+      while (node != null) {
+        push(node);
+        node = node.left;
+      }
+    }
+
+    private void push(Node node) {
+      if (depth == stack.length) stack = Arrays.copyOf(stack, stack.length * 2);
+      stack[depth++] = node;
+    }
+  }
+
+  // keys in [lo, hi), null meaning no bound
+  private class KeyIterator implements Iterator<K> {
+    private final Cursor cursor = new Cursor();
+    private final K hi;
+
+    private KeyIterator(K lo, K hi) {
+      this.hi = hi;
+      if (lo == null) cursor.seekFirst();
+      else cursor.seekCeiling(lo);
+    }
+
+    public boolean hasNext() {
+      return cursor.hasNext() && (hi == null || cursor.peek().key.compareTo(hi) < 0);
+    }
+
+    public K next() {
+      if (!hasNext()) throw new NoSuchElementException();
+      return cursor.next().key;
+    }
+  }
+
+  // entries in [lo, hi), used by the map views
+  private class EntryIterator implements Iterator<Map.Entry<K, V>> {
+    private final Cursor cursor = new Cursor();
+    private final K hi;
+
+    private EntryIterator(K lo, K hi) {
+      this.hi = hi;
+      if (lo == null) cursor.seekFirst();
+      else cursor.seekCeiling(lo);
+    }
+
+    public boolean hasNext() {
+      return cursor.hasNext() && (hi == null || cursor.peek().key.compareTo(hi) < 0);
+    }
+
+    public Map.Entry<K, V> next() {
+      if (!hasNext()) throw new NoSuchElementException();
+      Node node = cursor.next();
+      return new AbstractMap.SimpleImmutableEntry<>(node.key, node.value);
+    }
+  }
+
+  /**
+   * Spliterator over the keys with ranks in [from, to). Splitting just halves
+   * the rank range; the cursor is only positioned (O(log n)) once we start
+   * walking.
+   */
+  private class KeySpliterator implements Spliterator<K> {
+    private int from;
+    private final int to;
+    private Cursor cursor = null;
+
+    private KeySpliterator(int from, int to) {
+      this.from = from;
+      this.to = to;
+    }
+
+    public boolean tryAdvance(Consumer<? super K> action) {
+      if (from >= to) return false;
+      if (cursor == null) {
+        cursor = new Cursor();
+        cursor.seekRank(from);
+      }
+      from++;
+      action.accept(cursor.next().key);
+      return true;
+    }
+
+    public void forEachRemaining(Consumer<? super K> action) {
+      while (tryAdvance(action)) {}
+    }
 
-    // recurse on left and right subtrees, keeping track of the depth
-    int left = calcTotalDepth(node.left, currentDepth + 1);
-    int right = calcTotalDepth(node.right, currentDepth + 1);
+    public Spliterator<K> trySplit() {
+      if (cursor != null || to - from < 1024) return null; // not worth splitting
+      int middle = (from + to) >>> 1;
+      KeySpliterator prefix = new KeySpliterator(from, middle);
+      from = middle;
+      return prefix;
+    }
+
+    public long estimateSize() {
+      return to - from;
+    }
+
+    public int characteristics() {
+      return ORDERED | SORTED | DISTINCT | SIZED | SUBSIZED | NONNULL;
+    }
 
-    return currentDepth + left + right; // add the two numbers and return the sum
+    public Comparator<? super K> getComparator() {
+      return null; // natural ordering
+    }
   }
 
+  /**
+   * Read-only SortedMap view of the keys in [lo, hi), either bound null
+   * meaning open. Sizes come from ranks, so size() is O(log n).
+   */
+  private class RangeMap extends AbstractMap<K, V> implements SortedMap<K, V> {
+    private final K lo;
+    private final K hi;
+
+    private RangeMap(K lo, K hi) {
+      this.lo = lo;
+      this.hi = hi;
+    }
+
+    private boolean inRange(K key) {
+      return (lo == null || key.compareTo(lo) >= 0) && (hi == null || key.compareTo(hi) < 0);
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+      if (key == null || !inRange((K) key)) return null;
+      return RedBlackTree.this.get((K) key);
+    }
+
+    @SuppressWarnings("unchecked")
+    public boolean containsKey(Object key) {
+      return key != null && inRange((K) key) && RedBlackTree.this.containsKey((K) key);
+    }
+
+    public int size() {
+      int from = lo == null ? 0 : countLess(lo);
+      int to = hi == null ? RedBlackTree.this.size() : countLess(hi);
+      return Math.max(0, to - from);
+    }
+
+    public Set<Map.Entry<K, V>> entrySet() {
+      return new AbstractSet<Map.Entry<K, V>>() {
+        public Iterator<Map.Entry<K, V>> iterator() {
+          return new EntryIterator(lo, hi);
+        }
+
+        public int size() {
+          return RangeMap.this.size();
+        }
+      };
+    }
+
+    public Comparator<? super K> comparator() {
+      return null; // natural ordering
+    }
+
+    public SortedMap<K, V> subMap(K fromKey, K toKey) {
+      if (!inBounds(fromKey) || !inBounds(toKey) || fromKey.compareTo(toKey) > 0) {
+        throw new IllegalArgumentException("Key out of range!");
+      }
+      return new RangeMap(fromKey, toKey);
+    }
+
+    public SortedMap<K, V> headMap(K toKey) {
+      if (!inBounds(toKey)) throw new IllegalArgumentException("Key out of range!");
+      return new RangeMap(lo, toKey);
+    }
 
+    public SortedMap<K, V> tailMap(K fromKey) {
+      if (!inBounds(fromKey)) throw new IllegalArgumentException("Key out of range!");
+      return new RangeMap(fromKey, hi);
+    }
+
+    // like inRange, but hi itself is allowed as the end of a smaller view
+    private boolean inBounds(K key) {
+      return (lo == null || key.compareTo(lo) >= 0) && (hi == null || key.compareTo(hi) <= 0);
+    }
+
+    public K firstKey() {
+      Node node = lo == null ? findMinNode(root) : ceilingNode(lo);
+      if (node == null || !inRange(node.key)) throw new NoSuchElementException();
+      return node.key;
+    }
+
+    public K lastKey() {
+      Node node;
+      if (hi == null) {
+        node = root;
+        while (node != null && node.right != null) node = node.right;
+      }
+      else node = lowerNode(hi);
+      if (node == null || !inRange(node.key)) throw new NoSuchElementException();
+      return node.key;
+    }
+  }
 
   /**
    * Fix any issues in the tree
@@ -661,6 +1903,13 @@ public class RedBlackTree<K extends Comparable<K>,V>{
     // the newRoot is the problematic right red child
     Node newRoot = oldRoot.right; 
 
+    // oldRoot and its left subtree go down a level, newRoot and its right subtree come up one
+    if(counting) rotationCount++;
+    if(!statsDirty) {
+      totalDepth += size(oldRoot.left) - size(newRoot.right);
+      if(!newRoot.isRed) redCount++; // oldRoot ends up red and newRoot gets oldRoot's color
+    }
+
     // the oldRoot's right link should be the newRoot's previous left link 
     oldRoot.right = newRoot.left; 
 
@@ -673,11 +1922,12 @@ public class RedBlackTree<K extends Comparable<K>,V>{
     // oldRoot being the left child should be red
     oldRoot.isRed = true; 
 
-    // since newRoot is in the same position, its subtree size will be the same as oldRoot's
+    // since newRoot is in the same position, its subtree size (and aggregate) will be the same as oldRoot's
     newRoot.subtreeSize = oldRoot.subtreeSize; 
+    newRoot.agg = oldRoot.agg;
 
     // calculate new subtree size of oldRoot
-    oldRoot.subtreeSize = size(oldRoot.left) + size(oldRoot.right) + 1; 
+    update(oldRoot);
 
     // return the node now at the root position of this (sub)tree
     return newRoot;
@@ -693,6 +1943,11 @@ public class RedBlackTree<K extends Comparable<K>,V>{
   private Node rotateRight(Node oldRoot) {
     // same logic as rotateLeft
     Node newRoot = oldRoot.left;
+    if(counting) rotationCount++;
+    if(!statsDirty) {
+      totalDepth += size(oldRoot.right) - size(newRoot.left);
+      if(!newRoot.isRed) redCount++;
+    }
     oldRoot.left = newRoot.right;
     newRoot.right = oldRoot;
 
@@ -700,22 +1955,35 @@ public class RedBlackTree<K extends Comparable<K>,V>{
     oldRoot.isRed = true;  // color flip would get called right after this
 
     newRoot.subtreeSize = oldRoot.subtreeSize;
-    oldRoot.subtreeSize = size(oldRoot.left) + size(oldRoot.right) + 1;
+    newRoot.agg = oldRoot.agg;
+    update(oldRoot);
 
     return newRoot;
   }
 
   /**
-   * Give the node and its children the opposite of their original colors
+   * Give the node and its children the opposite of their original colors.
+   * Colors aren't part of any aggregate, so there's nothing to update.
    * 
    * @param top
    */
   private void colorFlip(Node parent) {
+    if(counting) colorFlipCount++;
+    if(!statsDirty) {
+      // every red node turns black and every black one red
+      redCount += (parent.isRed ? -1 : 1) + (parent.left.isRed ? -1 : 1) + (parent.right.isRed ? -1 : 1);
+    }
     parent.isRed = !parent.isRed;
     parent.left.isRed = !parent.left.isRed;
     parent.right.isRed = !parent.right.isRed;
   }
 
+  // sets a color, keeping the red count right
+  private void setRed(Node node, boolean isRed) {
+    if(!statsDirty && node.isRed != isRed) redCount += isRed ? 1 : -1;
+    node.isRed = isRed;
+  }
+
   /**
    * Need this method to prevent exceptions when node doesn't exist
    * 
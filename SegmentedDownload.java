@@ -0,0 +1,342 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Downloads one large file as several byte ranges at once, each on its own
+ * connection, writing every range straight to its place in the file.
+ *
+ * First a one byte range is asked for, to learn whether the server takes
+ * ranges and how long the file is. If it doesn't take ranges, the file is
+ * just downloaded the normal way in the same response. Progress is kept in a
+ * small state file next to the download (the file name plus ".segments"),
+ * so if a download stops part way, running it again only fetches what's
+ * missing - as long as the server still has the same version of the file.
+ * The state file is deleted once the download is complete.
+ *
+ * @author Sumneet
+ */
+public class SegmentedDownload {
+
+    public static final int DEFAULT_SEGMENTS = 4;
+
+    // Files aren't split into ranges smaller than this
+    private static final long MIN_SEGMENT_SIZE = 1024 * 1024;
+    // How much a segment downloads between saves of the state file
+    private static final long CHECKPOINT_BYTES = 8 * 1024 * 1024;
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private final Fetch fetch;
+    private final int segmentCount;
+    private final File stateFile;
+
+    // what the last probe said about the file
+    private long length;
+    private String etag;
+    private String lastModified;
+    private Segment[] segments;
+
+    /**
+     * Creates a segmented download of what the fetch points at, in up to
+     * segmentCount ranges at once.
+     *
+     * @param fetch
+     * @param segmentCount
+     */
+    public SegmentedDownload(Fetch fetch, int segmentCount) {
+        if (segmentCount < 1) throw new IllegalArgumentException("There must be at least one segment.");
+        this.fetch = fetch;
+        this.segmentCount = segmentCount;
+        this.stateFile = new File(fetch.getFile().getPath() + ".segments");
+    }
+
+    /**
+     * Downloads the file, picking up from the state file if an earlier run
+     * was interrupted. If any range fails, the others still finish and the
+     * progress is saved before the exception is thrown, so calling this
+     * again resumes.
+     *
+     * @throws IOException
+     */
+    public void download() throws IOException {
+        if (!probe()) return;  // no ranges - the probe already downloaded it
+
+        boolean resuming = loadState();
+        if (!resuming) {
+            segments = split(length, (int) Math.min(segmentCount, Math.max(1, length / MIN_SEGMENT_SIZE)));
+        }
+
+        try (FileChannel file = FileChannel.open(fetch.getFile().toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            if (!resuming) file.truncate(0);  // whatever was there belongs to some other download
+            saveState();
+
+            ExecutorService workers = Executors.newFixedThreadPool(segments.length);
+            List<Future<?>> running = new ArrayList<>();
+            for (Segment segment : segments) {
+                if (!segment.isDone()) running.add(workers.submit(() -> { downloadSegment(segment, file); return null; }));
+            }
+            workers.shutdown();
+
+            IOException failure = null;
+            for (Future<?> future : running) {
+                try {
+                    future.get();
+                }
+                catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                    }
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    if (failure == null) failure = new IOException("Interrupted while downloading.");
+                }
+            }
+
+            if (failure != null) {
+                file.force(false);
+                saveState();
+                throw failure;
+            }
+            if (file.size() > length) file.truncate(length);
+        }
+        Files.deleteIfExists(stateFile.toPath());
+    }
+
+    /**
+     * Returns the state file this download keeps its progress in.
+     *
+     * @return
+     */
+    public File getStateFile() {
+        return stateFile;
+    }
+
+    /**
+     * Asks for the first byte of the file. Returns true if the server answered
+     * with a range, after noting the file's length and version. If the server
+     * sent the whole file (a 200) it gets written out, and returns false. Any
+     * error status throws, and leaves the state file and what's been
+     * downloaded so far alone for the next try.
+     */
+    private boolean probe() throws IOException {
+        boolean plainFetch;
+        try (HttpConnection connection = HttpConnection.open(fetch.getConnector(), fetch.getHostName(), fetch.getPort())) {
+            connection.send(rangeRequest(0, 0, null));
+            InputStream in = connection.getInput();
+            HttpResponseParser head = new HttpResponseParser();
+            head.read(in);
+            int status = head.getStatus();
+
+            if (status == 200) {
+                // no ranges: just take the whole response
+                Files.deleteIfExists(stateFile.toPath());
+                HttpBodyInputStream body = new HttpBodyInputStream(in, head.getBodyLength(), head.isChunked());
+                Files.copy(body, fetch.getFile().toPath(), StandardCopyOption.REPLACE_EXISTING);
+                return false;
+            }
+            if (status != 206 && status != 416) {
+                throw new IOException("The server answered " + status + " " + head.getReason() + ".");
+            }
+
+            long[] range = status == 206 ? contentRange(head) : null;
+            // an empty file has no first byte to ask for (416), and without a total length we can't split it
+            plainFetch = range == null || range[2] < 0;
+            if (!plainFetch) {
+                length = range[2];
+                String tag = head.getHeader("etag");
+                etag = tag != null && !tag.startsWith("W/") ? tag : null;  // weak tags can't be used with If-Range
+                lastModified = head.getHeader("last-modified");
+            }
+        }
+
+        if (!plainFetch) return true;
+        Files.deleteIfExists(stateFile.toPath());
+        fetch.fetch();
+        return false;
+    }
+
+    private void downloadSegment(Segment segment, FileChannel file) throws IOException {
+        try (HttpConnection connection = HttpConnection.open(fetch.getConnector(), fetch.getHostName(), fetch.getPort())) {
+            long start = segment.getNext();
+            connection.send(rangeRequest(start, segment.end, etag != null ? etag : lastModified));
+            InputStream in = connection.getInput();
+            HttpResponseParser head = new HttpResponseParser();
+            head.read(in);
+
+            long[] range = head.getStatus() == 206 ? contentRange(head) : null;
+            if (range == null || range[0] != start || range[1] > segment.end || range[2] != length) {
+                throw new IOException("The server didn't send the range asked for (status " + head.getStatus()
+                        + "); the file may have changed.");
+            }
+
+            HttpBodyInputStream body = new HttpBodyInputStream(in, head.getBodyLength(), head.isChunked());
+            byte[] buf = new byte[COPY_BUFFER_SIZE];
+            long position = start;
+            long sinceCheckpoint = 0;
+            int numBytes;
+            while (position <= segment.end && (numBytes = body.read(buf, 0, (int) Math.min(buf.length, segment.end + 1 - position))) != -1) {
+                ByteBuffer chunk = ByteBuffer.wrap(buf, 0, numBytes);
+                while (chunk.hasRemaining()) position += file.write(chunk, position);
+                segment.setNext(position);
+
+                sinceCheckpoint += numBytes;
+                if (sinceCheckpoint >= CHECKPOINT_BYTES) {
+                    sinceCheckpoint = 0;
+                    // the state must never claim bytes that aren't on disk, so only
+                    // save what was written before the force
+                    long[] written = snapshot();
+                    file.force(false);
+                    saveState(written);
+                }
+            }
+            if (!segment.isDone()) throw new IOException("The range ended early at byte " + position + ".");
+        }
+    }
+
+    private byte[] rangeRequest(long first, long last, String ifRange) {
+        String packet = "GET " + fetch.getPage() + " HTTP/1.1\r\n"
+                    + "Host: " + fetch.getHost() + "\r\n"
+                    + "Range: bytes=" + first + "-" + last + "\r\n"
+                    + (ifRange == null ? "" : "If-Range: " + ifRange + "\r\n")
+                    + "Connection: close\r\n"
+                    + "\r\n";
+        return packet.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    // "bytes 0-0/1234" -> {0, 0, 1234}, with -1 for a "*" total; null if there's no usable header
+    private static long[] contentRange(HttpResponseParser head) {
+        String value = head.getHeader("content-range");
+        if (value == null || !value.startsWith("bytes ")) return null;
+        int dash = value.indexOf('-');
+        int slash = value.indexOf('/');
+        if (dash < 0 || slash < dash) return null;
+        try {
+            long first = Long.parseLong(value.substring(6, dash).trim());
+            long last = Long.parseLong(value.substring(dash + 1, slash).trim());
+            String total = value.substring(slash + 1).trim();
+            return new long[] {first, last, total.equals("*") ? -1 : Long.parseLong(total)};
+        }
+        catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // count ranges of about the same size covering [0, length)
+    private static Segment[] split(long length, int count) {
+        if (length == 0) return new Segment[0];
+        Segment[] result = new Segment[count];
+        long size = length / count;
+        for (int i = 0; i < count; i++) {
+            long start = i * size;
+            long end = i == count - 1 ? length - 1 : start + size - 1;
+            result[i] = new Segment(start, end, start);
+        }
+        return result;
+    }
+
+    /**
+     * Reads the state file. Returns true if it describes this same version of
+     * the file, so the download can continue from it.
+     */
+    private boolean loadState() throws IOException {
+        if (!stateFile.exists() || !fetch.getFile().exists()) return false;
+
+        long savedLength = -1;
+        String savedEtag = null;
+        String savedModified = null;
+        List<Segment> saved = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(stateFile, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(" ", 2);
+                if (parts.length < 2) continue;
+                switch (parts[0]) {
+                    case "length": savedLength = Long.parseLong(parts[1]); break;
+                    case "etag": savedEtag = parts[1]; break;
+                    case "modified": savedModified = parts[1]; break;
+                    case "segment":
+                        String[] numbers = parts[1].split(" ");
+                        saved.add(new Segment(Long.parseLong(numbers[0]), Long.parseLong(numbers[1]), Long.parseLong(numbers[2])));
+                        break;
+                    default: break;
+                }
+            }
+        }
+        catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            return false;  // a damaged state file just means starting over
+        }
+
+        boolean same = savedLength == length
+                && (etag == null ? savedEtag == null : etag.equals(savedEtag))
+                && (lastModified == null ? savedModified == null : lastModified.equals(savedModified));
+        if (!same) return false;
+        segments = saved.toArray(new Segment[0]);
+        return true;
+    }
+
+    private void saveState() throws IOException {
+        saveState(snapshot());
+    }
+
+    // every segment's next, in order
+    private long[] snapshot() {
+        long[] next = new long[segments.length];
+        for (int i = 0; i < segments.length; i++) next[i] = segments[i].getNext();
+        return next;
+    }
+
+    // written to a temporary file first so a crash never leaves half a state file
+    private synchronized void saveState(long[] next) throws IOException {
+        File temp = new File(stateFile.getPath() + ".tmp");
+        try (PrintWriter writer = new PrintWriter(temp, StandardCharsets.UTF_8)) {
+            writer.println("length " + length);
+            if (etag != null) writer.println("etag " + etag);
+            if (lastModified != null) writer.println("modified " + lastModified);
+            for (int i = 0; i < segments.length; i++) {
+                writer.println("segment " + segments[i].start + " " + segments[i].end + " " + next[i]);
+            }
+        }
+        Files.move(temp.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // one byte range of the file, [start, end], with everything before next already written
+    private static class Segment {
+        private final long start;
+        private final long end;
+        private volatile long next;
+
+        private Segment(long start, long end, long next) {
+            this.start = start;
+            this.end = end;
+            this.next = next;
+        }
+
+        private long getNext() {
+            return next;
+        }
+
+        private void setNext(long next) {
+            this.next = next;
+        }
+
+        private boolean isDone() {
+            return next > end;
+        }
+    }
+}